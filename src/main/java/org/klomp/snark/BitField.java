@@ -1,5 +1,5 @@
 /*
- * BitField - Container of a byte array representing set and unset bits.
+ * BitField - Container of set and unset bits.
  * Copyright (C) 2003 Mark J. Wielaard
  * 
  * This file is part of Snark.
@@ -20,54 +20,104 @@
 
 package org.klomp.snark;
 
+import java.util.Arrays;
+
 /**
- * Container of a byte array representing set and unset bits.
+ * Container of set and unset bits. The bits are kept in longs so that
+ * searching, counting and combining BitFields works on 64 bits at a time.
+ * On the wire, and in getFieldBytes(), bit 0 is the highest bit of the first
+ * byte. The number of set bits is kept up to date so cardinality() is free.
+ *
+ * A BitField that is changed by one thread and read by others can hand out
+ * snapshots. A snapshot is a copy of the bits that is made the first time one
+ * is asked for after the BitField changed, until the next change the same
+ * snapshot is handed out. Snapshots can't be changed and all their fields
+ * are final, so they can be read without locking.
  */
 public class BitField
 {
 
-    private final byte[] bitfield;
+    private final long[] words;
 
     private final int size;
 
+    // Number of set bits, see Snapshot for the count of a snapshot.
+    private int count;
+
+    // Number of changes, see getVersion().
+    private int version;
+
+    // The snapshot of the current version, null when not taken yet.
+    private Snapshot snapshot;
+
+    private final boolean readOnly;
+
     /**
      * Creates a new BitField that represents <code>size</code> unset bits.
      */
     public BitField (int size)
     {
         this.size = size;
-        int arraysize = ((size - 1) / 8) + 1;
-        bitfield = new byte[arraysize];
+        words = new long[(size + 63) >>> 6];
+        readOnly = false;
+    }
+
+    /**
+     * Creates a new BitField with the same bits as the given BitField.
+     */
+    public BitField (BitField bitfield)
+    {
+        size = bitfield.size;
+        words = bitfield.words.clone();
+        count = bitfield.cardinality();
+        readOnly = false;
+    }
+
+    // Creates a snapshot with a copy of the bits of the given BitField.
+    private BitField (BitField bitfield, boolean readOnly)
+    {
+        size = bitfield.size;
+        words = bitfield.words.clone();
+        this.readOnly = readOnly;
     }
 
     /**
      * Creates a new BitField that represents <code>size</code> bits as set by
-     * the given byte array. This will make a copy of the array. Extra bytes
-     * will be ignored.
+     * the given byte array in wire format. Extra bytes and bits past size are
+     * ignored.
      * 
      * @exception ArrayOutOfBoundsException
      *                if give byte array is not large enough.
      */
     public BitField (byte[] bitfield, int size)
     {
-        this.size = size;
-        int arraysize = ((size - 1) / 8) + 1;
-        this.bitfield = new byte[arraysize];
-
-        // XXX - More correct would be to check that unused bits are
-        // cleared or clear them explicitly ourselves.
-        System.arraycopy(bitfield, 0, this.bitfield, 0, arraysize);
+        this(size);
+        int arraysize = (size + 7) >>> 3;
+        if (bitfield.length < arraysize) {
+            throw new ArrayIndexOutOfBoundsException(arraysize - 1);
+        }
+        for (int i = 0; i < arraysize; i++) {
+            // Reverse the bits so bit 0 ends up lowest.
+            long b = Integer.reverse(bitfield[i] & 0xff) >>> 24;
+            words[i >>> 3] |= b << ((i & 7) << 3);
+        }
+        clearTail();
+        count = countBits();
     }
 
     /**
-     * This returns the actual byte array used. Changes to this array effect
-     * this BitField. Note that some bits at the end of the byte array are
-     * supposed to be always unset if they represent bits bigger then the size
-     * of the bitfield.
+     * Returns the bits as a byte array in wire format. Note that the array
+     * is a copy, changing it doesn't effect this BitField. Bits at the end
+     * of the byte array bigger then the size of the bitfield are unset.
      */
     public byte[] getFieldBytes ()
     {
-        return bitfield;
+        byte[] bs = new byte[(size + 7) >>> 3];
+        for (int i = 0; i < bs.length; i++) {
+            int b = (int)(words[i >>> 3] >>> ((i & 7) << 3)) & 0xff;
+            bs[i] = (byte)(Integer.reverse(b) >>> 24);
+        }
+        return bs;
     }
 
     /**
@@ -79,6 +129,50 @@ public class BitField
         return size;
     }
 
+    /**
+     * Returns a BitField with the current bits of this BitField that never
+     * changes. The bits are only copied for the first snapshot after this
+     * BitField changed, until the next change all snapshots are the same
+     * object. The caller must hold the lock that guards changes of this
+     * BitField. A snapshot returns itself.
+     */
+    public BitField snapshot ()
+    {
+        if (readOnly) {
+            return this;
+        }
+        if (snapshot == null) {
+            snapshot = new Snapshot(this);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns true when this BitField is a snapshot that can't be changed.
+     */
+    public boolean isSnapshot ()
+    {
+        return readOnly;
+    }
+
+    /**
+     * Returns the number of times this BitField has changed, or for a
+     * snapshot the version of the BitField it was taken from. Snapshots of
+     * the same BitField with the same version have the same bits.
+     */
+    public int getVersion ()
+    {
+        return version;
+    }
+
+    /**
+     * Returns the number of set bits.
+     */
+    public int cardinality ()
+    {
+        return count;
+    }
+
     /**
      * Sets the given bit to true.
      * 
@@ -87,12 +181,34 @@ public class BitField
      */
     public void set (int bit)
     {
-        if (bit < 0 || bit >= size) {
-            throw new IndexOutOfBoundsException(Integer.toString(bit));
+        checkBit(bit);
+        checkWritable();
+        long mask = 1L << bit;
+        int index = bit >>> 6;
+        if ((words[index] & mask) == 0) {
+            change();
+            words[index] |= mask;
+            count++;
+        }
+    }
+
+    /**
+     * Sets the given bit to false.
+     * 
+     * @exception IndexOutOfBoundsException
+     *                if bit is smaller then zero bigger then size (inclusive).
+     */
+    public void clear (int bit)
+    {
+        checkBit(bit);
+        checkWritable();
+        long mask = 1L << bit;
+        int index = bit >>> 6;
+        if ((words[index] & mask) != 0) {
+            change();
+            words[index] &= ~mask;
+            count--;
         }
-        int index = bit / 8;
-        int mask = 128 >> (bit % 8);
-        bitfield[index] |= mask;
     }
 
     /**
@@ -102,26 +218,212 @@ public class BitField
      *                if bit is smaller then zero bigger then size (inclusive).
      */
     public boolean get (int bit)
+    {
+        checkBit(bit);
+        return (words[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    /**
+     * Returns the first set bit at or after the given bit, or -1 when there
+     * is none.
+     * 
+     * @exception IndexOutOfBoundsException
+     *                if bit is smaller then zero.
+     */
+    public int nextSetBit (int bit)
+    {
+        if (bit < 0) {
+            throw new IndexOutOfBoundsException(Integer.toString(bit));
+        }
+        if (bit >= size) {
+            return -1;
+        }
+
+        int index = bit >>> 6;
+        long word = words[index] & (-1L << bit);
+        while (word == 0) {
+            if (++index == words.length) {
+                return -1;
+            }
+            word = words[index];
+        }
+        return (index << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    /**
+     * Returns the first unset bit at or after the given bit, or -1 when
+     * there is none.
+     * 
+     * @exception IndexOutOfBoundsException
+     *                if bit is smaller then zero.
+     */
+    public int nextClearBit (int bit)
+    {
+        if (bit < 0) {
+            throw new IndexOutOfBoundsException(Integer.toString(bit));
+        }
+        if (bit >= size) {
+            return -1;
+        }
+
+        int index = bit >>> 6;
+        long word = ~words[index] & (-1L << bit);
+        while (word == 0) {
+            if (++index == words.length) {
+                return -1;
+            }
+            word = ~words[index];
+        }
+        int next = (index << 6) + Long.numberOfTrailingZeros(word);
+        return (next < size) ? next : -1;
+    }
+
+    /**
+     * Unsets all bits that aren't set in the given BitField.
+     */
+    public void and (BitField other)
+    {
+        checkWritable();
+        boolean changed = false;
+        for (int i = 0; i < words.length; i++) {
+            long word = (i < other.words.length) ? words[i] & other.words[i]
+                : 0;
+            changed |= setWord(i, word, changed);
+        }
+    }
+
+    /**
+     * Unsets all bits that are set in the given BitField.
+     */
+    public void andNot (BitField other)
+    {
+        checkWritable();
+        boolean changed = false;
+        int n = Math.min(words.length, other.words.length);
+        for (int i = 0; i < n; i++) {
+            long word = words[i] & ~other.words[i];
+            if (i == words.length - 1) {
+                word &= tailMask();
+            }
+            changed |= setWord(i, word, changed);
+        }
+    }
+
+    /**
+     * Sets all bits that are set in the given BitField. Bits past the size of
+     * this BitField are ignored.
+     */
+    public void or (BitField other)
+    {
+        checkWritable();
+        boolean changed = false;
+        int n = Math.min(words.length, other.words.length);
+        for (int i = 0; i < n; i++) {
+            long word = words[i] | other.words[i];
+            if (i == words.length - 1) {
+                word &= tailMask();
+            }
+            changed |= setWord(i, word, changed);
+        }
+    }
+
+    /**
+     * Returns true when a bit is set in both this and the given BitField.
+     */
+    public boolean intersects (BitField other)
+    {
+        int n = Math.min(words.length, other.words.length);
+        for (int i = 0; i < n; i++) {
+            if ((words[i] & other.words[i]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true when all bits that are set in the given BitField are also
+     * set in this BitField.
+     */
+    public boolean containsAll (BitField other)
+    {
+        for (int i = 0; i < other.words.length; i++) {
+            long mine = (i < words.length) ? words[i] : 0;
+            if ((other.words[i] & ~mine) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Called before the bits change, the next snapshot gets the new bits.
+    private void change ()
+    {
+        checkWritable();
+        snapshot = null;
+        version++;
+    }
+
+    // Sets word i to the given bits. Returns true when that changed it,
+    // changed tells whether an earlier word was changed by the same
+    // operation already so the version is only bumped once.
+    private boolean setWord (int i, long word, boolean changed)
+    {
+        if (words[i] == word) {
+            return false;
+        }
+        if (!changed) {
+            change();
+        }
+        count += Long.bitCount(word) - Long.bitCount(words[i]);
+        words[i] = word;
+        return true;
+    }
+
+    private void checkWritable ()
+    {
+        if (readOnly) {
+            throw new UnsupportedOperationException("BitField snapshot");
+        }
+    }
+
+    private void checkBit (int bit)
     {
         if (bit < 0 || bit >= size) {
             throw new IndexOutOfBoundsException(Integer.toString(bit));
         }
+    }
 
-        int index = bit / 8;
-        int mask = 128 >> (bit % 8);
-        return (bitfield[index] & mask) != 0;
+    // Unsets the bits in the last word past size.
+    private void clearTail ()
+    {
+        if (words.length > 0) {
+            words[words.length - 1] &= tailMask();
+        }
+    }
+
+    // The bits of the last word that are below size.
+    private long tailMask ()
+    {
+        return ((size & 63) != 0) ? (1L << size) - 1 : -1L;
+    }
+
+    private int countBits ()
+    {
+        int bits = 0;
+        for (long word : words) {
+            bits += Long.bitCount(word);
+        }
+        return bits;
     }
 
     @Override
     public String toString ()
     {
-        // Not very efficient
         StringBuffer sb = new StringBuffer("BitField[");
-        for (int i = 0; i < size; i++) {
-            if (get(i)) {
-                sb.append(' ');
-                sb.append(i);
-            }
+        for (int i = nextSetBit(0); i != -1; i = nextSetBit(i + 1)) {
+            sb.append(' ');
+            sb.append(i);
         }
         sb.append(" ]");
 
@@ -130,14 +432,38 @@ public class BitField
 
     public String getHumanReadable()
     {
-        StringBuffer sb = new StringBuffer();
-        for (int i = 0; i < size; i++) {
-            if (get(i)) {
-                sb.append('+');
-            } else {
-                sb.append('-');
-            }
+        char[] cs = new char[size];
+        Arrays.fill(cs, '-');
+        for (int i = nextSetBit(0); i != -1; i = nextSetBit(i + 1)) {
+            cs[i] = '+';
+        }
+        return new String(cs);
+    }
+
+    // A BitField that never changes, see snapshot().
+    private static final class Snapshot extends BitField
+    {
+        private final int count;
+
+        private final int version;
+
+        Snapshot (BitField bitfield)
+        {
+            super(bitfield, true);
+            count = bitfield.count;
+            version = bitfield.version;
+        }
+
+        @Override
+        public int cardinality ()
+        {
+            return count;
+        }
+
+        @Override
+        public int getVersion ()
+        {
+            return version;
         }
-        return sb.toString();
     }
 }
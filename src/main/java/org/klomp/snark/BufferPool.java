@@ -0,0 +1,176 @@
+/*
+ * BufferPool - Reuses the byte arrays that hold downloaded pieces.
+ *
+ * This file is part of Snark.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.klomp.snark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pool of piece sized byte arrays, keyed by their size. Downloading a piece
+ * takes an array from the pool and gives it back once the piece is written,
+ * thrown away or turned out to be bad. This keeps the large arrays out of the
+ * garbage collector. At most maxSize bytes of free arrays are kept, arrays
+ * released beyond that are left to the garbage collector.
+ */
+public class BufferPool
+{
+    /** The default number of free bytes kept by the shared pool. */
+    public static final long DEFAULT_SIZE = 32 * 1024 * 1024;
+
+    private static final BufferPool pool = new BufferPool(DEFAULT_SIZE);
+
+    private final long maxSize;
+
+    // Free arrays by length.
+    private final Map<Integer, List<byte[]>> free = new HashMap<Integer, List<byte[]>>();
+
+    // Bytes in the free lists.
+    private long pooled;
+
+    // Bytes handed out and not yet released.
+    private long inUse;
+
+    private long highWater;
+
+    private long allocations;
+
+    private long reuses;
+
+    /**
+     * Creates a new BufferPool that keeps at most maxSize bytes of free
+     * arrays.
+     */
+    public BufferPool (long maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the pool shared by all torrents.
+     */
+    public static BufferPool getPool ()
+    {
+        return pool;
+    }
+
+    /**
+     * Returns an array of exactly size bytes. The contents are undefined.
+     * The array should be given back with release() when no longer needed.
+     */
+    synchronized byte[] acquire (int size)
+    {
+        byte[] bs = null;
+        List<byte[]> list = free.get(size);
+        if (list != null && !list.isEmpty()) {
+            bs = list.remove(list.size() - 1);
+            pooled -= size;
+            reuses++;
+        } else {
+            bs = new byte[size];
+            allocations++;
+        }
+
+        inUse += size;
+        if (inUse > highWater) {
+            highWater = inUse;
+        }
+        return bs;
+    }
+
+    /**
+     * Gives an array gotten from acquire() back to the pool. The array must
+     * not be used anymore afterwards.
+     */
+    synchronized void release (byte[] bs)
+    {
+        int size = bs.length;
+        inUse -= size;
+        if (pooled + size > maxSize) {
+            return;
+        }
+
+        List<byte[]> list = free.get(size);
+        if (list == null) {
+            list = new ArrayList<byte[]>();
+            free.put(size, list);
+        }
+        list.add(bs);
+        pooled += size;
+    }
+
+    /**
+     * Returns the maximum number of free bytes kept by this pool.
+     */
+    public long getMaxSize ()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of bytes in arrays that are free for reuse.
+     */
+    public synchronized long getPooled ()
+    {
+        return pooled;
+    }
+
+    /**
+     * Returns the number of bytes in arrays that are currently in use.
+     */
+    public synchronized long getInUse ()
+    {
+        return inUse;
+    }
+
+    /**
+     * Returns the highest number of bytes that were in use at once.
+     */
+    public synchronized long getHighWater ()
+    {
+        return highWater;
+    }
+
+    /**
+     * Returns the number of arrays that had to be newly allocated.
+     */
+    public synchronized long getAllocations ()
+    {
+        return allocations;
+    }
+
+    /**
+     * Returns the number of arrays that were reused from the pool.
+     */
+    public synchronized long getReuses ()
+    {
+        return reuses;
+    }
+
+    @Override
+    public synchronized String toString ()
+    {
+        return "BufferPool[inUse=" + inUse / 1024 + "KB, highWater="
+            + highWater / 1024 + "KB, pooled=" + pooled / 1024 + "KB, max="
+            + maxSize / 1024 + "KB, allocations=" + allocations
+            + ", reuses=" + reuses + "]";
+    }
+}
@@ -0,0 +1,478 @@
+/*
+ * DiskWriter - Writes received pieces to the Storage in the background.
+ *
+ * This file is part of Snark.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.klomp.snark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes verified pieces and the blocks of pieces that are still being
+ * downloaded to the Storage from one or more background threads so that the
+ * peer connections never wait for the disk. The number of bytes waiting to be
+ * written is bounded, when it is reached write() blocks till a writer has
+ * caught up. Writers take everything that is pending at once and write it in
+ * piece and block order, which is the order of the data in the files. Blocks
+ * of a piece are always handled before the piece itself and a discard of the
+ * stored blocks of a piece is handled after the writes of that piece queued
+ * before it and before the ones queued after it, which only holds when there
+ * is one writer thread. When the Storage has an IOScheduler the pieces of a
+ * batch are written at the same time, each by its own thread, so that the
+ * scheduler gets all of them at once and can order them. The arrays of the
+ * pieces and blocks are given back to the BufferPool once they are written.
+ */
+class DiskWriter
+{
+    /**
+     * Callback for pieces that have been handled by the DiskWriter. Called
+     * from the writer threads.
+     */
+    interface Listener
+    {
+        /**
+         * Called when the piece has been written and is available in the
+         * Storage.
+         */
+        void pieceWritten (int piece);
+
+        /**
+         * Called when writing the piece failed.
+         */
+        void writeFailed (int piece, IOException ioe);
+    }
+
+    // Kinds of pending writes.
+    private static final int BLOCK = 0;
+
+    private static final int PIECE = 1;
+
+    private static final int DISCARD = 2;
+
+    // Number of pieces of a batch that are written at once when the Storage
+    // schedules its reads and writes.
+    static final int SCHEDULED_PIECES = 8;
+
+    private final Storage storage;
+
+    private final Listener listener;
+
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<PendingWrite>();
+
+    private final Thread[] threads;
+
+    // Writes the pieces of a batch at the same time, null when the Storage
+    // has no IOScheduler.
+    private final ExecutorService scheduled;
+
+    // Maximum number of bytes that can wait for the disk.
+    private final int capacity;
+
+    // Number of writes queued or being written, guarded by this.
+    private int pending;
+
+    // Number of bytes queued or being written, guarded by this.
+    private int pendingBytes;
+
+    // Sequence number of the last queued write, guarded by this.
+    private long sequence;
+
+    // Sequence number of the last discard queued per piece, guarded by this.
+    private final Map<Integer, Long> discards = new HashMap<Integer, Long>();
+
+    // Number of discards queued or being handled per piece, guarded by this.
+    private final Map<Integer, Integer> discarding = new HashMap<Integer, Integer>();
+
+    // Set when close() is called, no writes are accepted anymore. Guarded
+    // by this.
+    private boolean closing = false;
+
+    private volatile boolean quit = false;
+
+    /**
+     * Creates a new DiskWriter that queues at most capacity bytes and starts
+     * the given number of writer threads. A single piece or block is always
+     * accepted, even when it is larger than capacity.
+     */
+    DiskWriter (Storage storage, Listener listener, int capacity, int count)
+    {
+        this.storage = storage;
+        this.listener = listener;
+        this.capacity = capacity;
+        if (storage.getIOScheduler() != null) {
+            scheduled = Executors.newFixedThreadPool(SCHEDULED_PIECES,
+                new ThreadFactory() {
+                    public Thread newThread (Runnable r)
+                    {
+                        Thread t = new Thread(r, "DiskWriter piece");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        } else {
+            scheduled = null;
+        }
+        threads = new Thread[count];
+        for (int i = 0; i < count; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run ()
+                {
+                    writeLoop();
+                }
+            }, "DiskWriter " + (i + 1));
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Queues a verified piece for writing. Blocks when the queue is full.
+     * When blocksStored is true all blocks of the piece have been queued
+     * through writeBlock() before and the piece is only written when one of
+     * them could not be stored. Returns false, without taking over the array,
+     * when the DiskWriter is closed.
+     */
+    boolean write (int piece, byte[] bs, boolean blocksStored)
+        throws InterruptedException
+    {
+        return enqueue(new PendingWrite(blocksStored ? PIECE : -PIECE, piece,
+            Integer.MAX_VALUE, bs, bs.length));
+    }
+
+    /**
+     * Queues a block of a piece that isn't verified yet for writing. Blocks
+     * when the queue is full. Returns false, without taking over the array,
+     * when the DiskWriter is closed.
+     * 
+     * @see Storage#storeBlock(int, int, byte[], int, int)
+     */
+    boolean writeBlock (int piece, int begin, byte[] bs, int length)
+        throws InterruptedException
+    {
+        return enqueue(new PendingWrite(BLOCK, piece, begin, bs, length));
+    }
+
+    /**
+     * Queues forgetting the stored blocks of a piece. It is done after the
+     * blocks of the piece that were queued before and before the ones that
+     * are queued later. Never blocks, does nothing when the DiskWriter is
+     * closed.
+     * 
+     * @see Storage#discardBlocks(int)
+     */
+    void discard (int piece)
+    {
+        try {
+            enqueue(new PendingWrite(DISCARD, piece, -1, null, 0));
+        } catch (InterruptedException ie) {
+            // Cannot happen, discards take no space.
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized boolean enqueue (PendingWrite w)
+        throws InterruptedException
+    {
+        while (!closing && w.length > 0 && pendingBytes > 0
+            && pendingBytes + w.length > capacity) {
+            wait();
+        }
+        if (closing) {
+            return false;
+        }
+        pending++;
+        pendingBytes += w.length;
+        w.sequence = ++sequence;
+        Integer p = new Integer(w.piece);
+        if (w.kind == DISCARD) {
+            w.epoch = w.sequence;
+            discards.put(p, new Long(w.sequence));
+            Integer count = discarding.get(p);
+            discarding.put(p, new Integer(count == null ? 1
+                : count.intValue() + 1));
+        } else {
+            Long epoch = discards.get(p);
+            w.epoch = epoch == null ? 0 : epoch.longValue();
+        }
+        queue.add(w);
+        return true;
+    }
+
+    /**
+     * Returns whether forgetting the stored blocks of the piece is queued or
+     * being done. The blocks read from the Storage till then can be stale.
+     */
+    synchronized boolean isDiscardPending (int piece)
+    {
+        return discarding.containsKey(new Integer(piece));
+    }
+
+    private synchronized void discarded (int piece)
+    {
+        Integer p = new Integer(piece);
+        int count = discarding.get(p).intValue();
+        if (count == 1) {
+            discarding.remove(p);
+        } else {
+            discarding.put(p, new Integer(count - 1));
+        }
+    }
+
+    /**
+     * Returns the number of writes that are queued or being written.
+     */
+    synchronized int getPending ()
+    {
+        return pending;
+    }
+
+    /**
+     * Refuses new writes, waits till all queued writes have been done and
+     * stops the writer threads.
+     */
+    void close ()
+    {
+        synchronized (this) {
+            closing = true;
+            notifyAll();
+            boolean interrupted = false;
+            while (pending > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        quit = true;
+        for (Thread t : threads) {
+            t.interrupt();
+        }
+        if (scheduled != null) {
+            scheduled.shutdown();
+        }
+    }
+
+    private void writeLoop ()
+    {
+        List<PendingWrite> batch = new ArrayList<PendingWrite>();
+        while (!quit) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException ie) {
+                continue;
+            }
+            queue.drainTo(batch);
+            Collections.sort(batch);
+
+            int bytes = 0;
+            for (PendingWrite w : batch) {
+                bytes += w.length;
+            }
+            try {
+                if (scheduled == null) {
+                    handleAll(batch);
+                } else {
+                    handleScheduled(batch);
+                }
+            } finally {
+                done(batch.size(), bytes);
+                batch.clear();
+            }
+        }
+    }
+
+    private void handleAll (List<PendingWrite> writes)
+    {
+        for (PendingWrite w : writes) {
+            handle(w);
+        }
+    }
+
+    /**
+     * Handles the writes of every piece of the sorted batch in order, but
+     * the pieces at the same time, and waits till all of them are done.
+     */
+    private void handleScheduled (List<PendingWrite> batch)
+    {
+        List<List<PendingWrite>> pieces = new ArrayList<List<PendingWrite>>();
+        List<PendingWrite> writes = null;
+        for (PendingWrite w : batch) {
+            if (writes == null || writes.get(0).piece != w.piece) {
+                writes = new ArrayList<PendingWrite>();
+                pieces.add(writes);
+            }
+            writes.add(w);
+        }
+        if (pieces.size() == 1) {
+            handleAll(batch);
+            return;
+        }
+
+        final CountDownLatch latch = new CountDownLatch(pieces.size());
+        for (final List<PendingWrite> piece : pieces) {
+            scheduled.execute(new Runnable() {
+                public void run ()
+                {
+                    try {
+                        handleAll(piece);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+
+        boolean interrupted = false;
+        while (latch.getCount() > 0) {
+            try {
+                latch.await();
+            } catch (InterruptedException ie) {
+                // The writes use the arrays, wait for them anyway.
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handle (PendingWrite w)
+    {
+        if (w.kind == DISCARD) {
+            try {
+                storage.discardBlocks(w.piece);
+            } catch (RuntimeException re) {
+                log.log(Level.SEVERE, "Couldn't discard blocks of piece "
+                    + w.piece, re);
+            } finally {
+                discarded(w.piece);
+            }
+            return;
+        }
+
+        try {
+            if (w.kind == BLOCK) {
+                storage.storeBlock(w.piece, w.begin, w.bs, 0, w.length);
+            } else {
+                if (w.kind != PIECE || !storage.completePiece(w.piece)) {
+                    storage.writePiece(w.piece, w.bs);
+                }
+                listener.pieceWritten(w.piece);
+            }
+        } catch (IOException ioe) {
+            failed(w, ioe);
+        } catch (RuntimeException re) {
+            IOException ioe = new IOException(re.toString());
+            ioe.initCause(re);
+            failed(w, ioe);
+        } finally {
+            BufferPool.getPool().release(w.bs);
+        }
+    }
+
+    private void failed (PendingWrite w, IOException ioe)
+    {
+        if (w.kind == BLOCK) {
+            // The piece itself will be written when it is complete.
+            log.log(Level.WARNING, "Couldn't write block " + w.begin
+                + " of piece " + w.piece, ioe);
+        } else {
+            log.log(Level.SEVERE, "Couldn't write piece " + w.piece, ioe);
+            listener.writeFailed(w.piece, ioe);
+        }
+    }
+
+    private synchronized void done (int count, int bytes)
+    {
+        pending -= count;
+        pendingBytes -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * A piece or block waiting to be written, or stored blocks waiting to be
+     * discarded. Ordered by piece, the discard queued before and begin, so a
+     * discard comes after the writes of the piece queued before it and
+     * before the ones queued after it. Pieces come after their blocks.
+     */
+    private static final class PendingWrite implements
+        Comparable<PendingWrite>
+    {
+        // BLOCK, PIECE, DISCARD or -PIECE for a piece of which the blocks
+        // were not stored.
+        final int kind;
+
+        final int piece;
+
+        final int begin;
+
+        final byte[] bs;
+
+        final int length;
+
+        // Order in which the write was queued.
+        long sequence;
+
+        // Sequence number of the last discard of the piece queued before
+        // this write or of the discard itself, 0 when there was none.
+        long epoch;
+
+        PendingWrite (int kind, int piece, int begin, byte[] bs, int length)
+        {
+            this.kind = kind;
+            this.piece = piece;
+            this.begin = begin;
+            this.bs = bs;
+            this.length = length;
+        }
+
+        public int compareTo (PendingWrite w)
+        {
+            if (piece != w.piece) {
+                return piece < w.piece ? -1 : 1;
+            }
+            if (epoch != w.epoch) {
+                return epoch < w.epoch ? -1 : 1;
+            }
+            if (begin != w.begin) {
+                return begin < w.begin ? -1 : 1;
+            }
+            return sequence < w.sequence ? -1
+                : (sequence == w.sequence ? 0 : 1);
+        }
+    }
+
+    protected static final Logger log = Logger.getLogger("org.klomp.snark.storage");
+}
@@ -0,0 +1,237 @@
+/*
+ * FileHandleCache - Keeps a limited number of torrent files open.
+ *
+ * This file is part of Snark.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.klomp.snark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Opens the files of a Storage on demand and keeps at most a fixed number of
+ * them open, closing the least recently used ones. A handle is pinned between
+ * acquire() and release() and is never closed to make room while pinned, so
+ * the number of open files can briefly exceed the limit when all handles are
+ * in use.
+ */
+public class FileHandleCache
+{
+    /** The default maximum number of open files. */
+    public static final int DEFAULT_MAX_OPEN = 128;
+
+    private final File[] files;
+
+    private final String mode;
+
+    private final int maxOpen;
+
+    // Access ordered, so the eldest entry is the least recently used.
+    private final LinkedHashMap<Integer, Handle> open = new LinkedHashMap<Integer, Handle>(
+        16, 0.75f, true);
+
+    private boolean closed = false;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    /**
+     * Creates a new FileHandleCache for the given files which are opened in
+     * the given RandomAccessFile mode, "r" or "rw".
+     */
+    FileHandleCache (File[] files, String mode, int maxOpen)
+    {
+        this.files = files;
+        this.mode = mode;
+        this.maxOpen = Math.max(1, maxOpen);
+    }
+
+    /**
+     * Returns the pinned handle of the given file, opening it when needed.
+     * Every acquire() must be followed by a release().
+     */
+    synchronized Handle acquire (int file) throws IOException
+    {
+        if (closed) {
+            throw new IOException("Storage closed");
+        }
+
+        Handle h = open.get(file);
+        if (h != null) {
+            hits++;
+        } else {
+            misses++;
+            h = new Handle(file, new RandomAccessFile(files[file], mode));
+            open.put(file, h);
+        }
+        h.pins++;
+        evict();
+        return h;
+    }
+
+    /**
+     * Unpins a handle gotten from acquire().
+     */
+    synchronized void release (Handle h) throws IOException
+    {
+        h.pins--;
+        if (h.pins == 0 && (h.stale || closed)) {
+            h.raf.close();
+        } else {
+            evict();
+        }
+    }
+
+    /**
+     * Drops a handle whose channel turned out to be closed, the next
+     * acquire() opens the file again.
+     */
+    synchronized void invalidate (Handle h)
+    {
+        if (open.get(h.file) == h) {
+            open.remove(h.file);
+        }
+        h.stale = true;
+    }
+
+    /**
+     * Closes all open files. Handles that are still pinned are closed as
+     * well. The cache cannot be used anymore afterwards.
+     */
+    synchronized void close () throws IOException
+    {
+        closed = true;
+        IOException failure = null;
+        for (Handle h : open.values()) {
+            try {
+                h.raf.close();
+            } catch (IOException ioe) {
+                failure = ioe;
+            }
+        }
+        open.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Closes least recently used handles that aren't pinned while there are
+     * too many files open.
+     */
+    private void evict ()
+    {
+        Iterator<Handle> it = open.values().iterator();
+        while (open.size() > maxOpen && it.hasNext()) {
+            Handle h = it.next();
+            if (h.pins == 0) {
+                it.remove();
+                evictions++;
+                try {
+                    h.raf.close();
+                } catch (IOException ioe) {
+                    log.log(Level.FINE, "Couldn't close "
+                        + files[h.file], ioe);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the maximum number of files kept open.
+     */
+    public int getMaxOpen ()
+    {
+        return maxOpen;
+    }
+
+    /**
+     * Returns the number of files that are currently open.
+     */
+    public synchronized int getOpen ()
+    {
+        return open.size();
+    }
+
+    /**
+     * Returns the number of times a file was already open when needed.
+     */
+    public synchronized long getHits ()
+    {
+        return hits;
+    }
+
+    /**
+     * Returns the number of times a file had to be opened.
+     */
+    public synchronized long getMisses ()
+    {
+        return misses;
+    }
+
+    /**
+     * Returns the number of files closed to stay within the limit.
+     */
+    public synchronized long getEvictions ()
+    {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString ()
+    {
+        return "FileHandleCache[open=" + open.size() + ", max=" + maxOpen
+            + ", hits=" + hits + ", misses=" + misses + ", evictions="
+            + evictions + "]";
+    }
+
+    /**
+     * An open file.
+     */
+    static final class Handle
+    {
+        final int file;
+
+        final RandomAccessFile raf;
+
+        final FileChannel channel;
+
+        // Number of users, guarded by the cache.
+        int pins;
+
+        // Set when the handle is no longer in the cache.
+        boolean stale;
+
+        Handle (int file, RandomAccessFile raf)
+        {
+            this.file = file;
+            this.raf = raf;
+            this.channel = raf.getChannel();
+        }
+    }
+
+    protected static final Logger log = Logger.getLogger("org.klomp.snark.storage");
+}
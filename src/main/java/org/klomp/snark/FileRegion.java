@@ -0,0 +1,71 @@
+/*
+ * FileRegion - A range of bytes in one of the files of a Storage.
+ *
+ * This file is part of Snark.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.klomp.snark;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A range of bytes in one of the files of a Storage. Used to send (part of) a
+ * piece straight from the file to a connection without copying it through a
+ * byte array first.
+ */
+public class FileRegion
+{
+    private final Storage storage;
+
+    private final int file;
+
+    private final long position;
+
+    private final int length;
+
+    FileRegion (Storage storage, int file, long position, int length)
+    {
+        this.storage = storage;
+        this.file = file;
+        this.position = position;
+        this.length = length;
+    }
+
+    /**
+     * Returns the number of bytes in this region.
+     */
+    public int getLength ()
+    {
+        return length;
+    }
+
+    /**
+     * Writes all bytes of this region to the given channel. When the channel
+     * is a socket the operating system can send the bytes straight from the
+     * file system cache.
+     */
+    public void transferTo (WritableByteChannel target) throws IOException
+    {
+        storage.transferTo(file, position, length, target);
+    }
+
+    @Override
+    public String toString ()
+    {
+        return "FileRegion[" + file + ", " + position + ", " + length + "]";
+    }
+}
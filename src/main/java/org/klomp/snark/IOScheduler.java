@@ -0,0 +1,379 @@
+/*
+ * IOScheduler - Orders the disk reads and writes of a Storage.
+ *
+ * This file is part of Snark.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.klomp.snark;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * Runs the disk reads and writes of a Storage one at a time from its own
+ * thread in elevator order. Pending operations are sorted by their offset in
+ * the torrent, which is the order of (file, offset) since the files are laid
+ * out one after the other, and the disk head sweeps from low to high offsets
+ * before starting over at the lowest. Every operation also gets a deadline,
+ * an operation whose deadline has passed is served first so nothing starves.
+ * Reads get a shorter deadline than writes since a peer is waiting for them.
+ * 
+ * All reads and writes of the Storage are serialized on the scheduler
+ * thread. That pays off on spinning disks, where a seek costs more than
+ * waiting, but not on SSDs, which serve concurrent requests in parallel.
+ * Callers wait for their own operation, so the queue only gets deep when many
+ * threads use the Storage at once, which is why the DiskWriter hands over the
+ * pieces of a batch together.
+ */
+public class IOScheduler
+{
+    /** Milliseconds a read may wait before it is served out of order. */
+    public static final long READ_DEADLINE = 500;
+
+    /** Milliseconds a write may wait before it is served out of order. */
+    public static final long WRITE_DEADLINE = 5000;
+
+    /**
+     * A disk operation.
+     */
+    interface Task
+    {
+        void run () throws IOException;
+    }
+
+    // Pending operations in elevator order.
+    private final TreeSet<Op> byPosition = new TreeSet<Op>(new Comparator<Op>() {
+        public int compare (Op a, Op b)
+        {
+            if (a.position != b.position) {
+                return a.position < b.position ? -1 : 1;
+            }
+            return compareSeq(a, b);
+        }
+    });
+
+    // Pending operations by deadline.
+    private final TreeSet<Op> byDeadline = new TreeSet<Op>(new Comparator<Op>() {
+        public int compare (Op a, Op b)
+        {
+            if (a.deadline != b.deadline) {
+                return a.deadline - b.deadline < 0 ? -1 : 1;
+            }
+            return compareSeq(a, b);
+        }
+    });
+
+    private final Thread thread;
+
+    private boolean closed = false;
+
+    // Where the previous operation started, the sweep continues from here.
+    private long head;
+
+    private long seq;
+
+    // Statistics, all guarded by this.
+    private int maxDepth;
+
+    private long reads;
+
+    private long writes;
+
+    private long readNanos;
+
+    private long writeNanos;
+
+    private long maxNanos;
+
+    private long expired;
+
+    /**
+     * Creates a new IOScheduler and starts its thread.
+     */
+    IOScheduler (String name)
+    {
+        thread = new Thread(new Runnable() {
+            public void run ()
+            {
+                serve();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues the task for the given offset in the torrent and waits till it
+     * has run. Any exception thrown by the task is rethrown.
+     */
+    void execute (long position, boolean write, Task task) throws IOException
+    {
+        Op op = new Op(position, write, task);
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Storage closed");
+            }
+            op.seq = seq++;
+            op.deadline = op.queued
+                + (write ? WRITE_DEADLINE : READ_DEADLINE) * 1000000;
+            byPosition.add(op);
+            byDeadline.add(op);
+            if (byPosition.size() > maxDepth) {
+                maxDepth = byPosition.size();
+            }
+            notifyAll();
+        }
+
+        boolean interrupted = false;
+        synchronized (op) {
+            while (!op.done) {
+                try {
+                    op.wait();
+                } catch (InterruptedException ie) {
+                    // Give up if the operation didn't start yet, otherwise
+                    // wait since the task might be using our buffers.
+                    if (cancel(op)) {
+                        throw new InterruptedIOException("Interrupted while "
+                            + "waiting for disk");
+                    }
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        Throwable failure = op.failure;
+        if (failure instanceof IOException) {
+            throw (IOException)failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException)failure;
+        } else if (failure instanceof Error) {
+            throw (Error)failure;
+        }
+    }
+
+    /**
+     * Stops the scheduler. Operations that didn't start yet fail.
+     */
+    void close ()
+    {
+        Op[] pending;
+        synchronized (this) {
+            closed = true;
+            pending = byPosition.toArray(new Op[byPosition.size()]);
+            byPosition.clear();
+            byDeadline.clear();
+            notifyAll();
+        }
+        for (Op op : pending) {
+            op.finish(new IOException("Storage closed"));
+        }
+    }
+
+    private synchronized boolean cancel (Op op)
+    {
+        if (byPosition.remove(op)) {
+            byDeadline.remove(op);
+            return true;
+        }
+        return false;
+    }
+
+    private void serve ()
+    {
+        while (true) {
+            Op op;
+            synchronized (this) {
+                while (byPosition.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ie) {
+                        // Only stops when closed.
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                op = next();
+                byPosition.remove(op);
+                byDeadline.remove(op);
+                head = op.position;
+            }
+
+            Throwable failure = null;
+            try {
+                op.task.run();
+            } catch (Throwable t) {
+                failure = t;
+            }
+            long nanos = System.nanoTime() - op.queued;
+
+            synchronized (this) {
+                if (op.write) {
+                    writes++;
+                    writeNanos += nanos;
+                } else {
+                    reads++;
+                    readNanos += nanos;
+                }
+                if (nanos > maxNanos) {
+                    maxNanos = nanos;
+                }
+            }
+            op.finish(failure);
+        }
+    }
+
+    /**
+     * Returns the operation to serve next, the one whose deadline passed
+     * first or else the next one in the sweep.
+     */
+    private Op next ()
+    {
+        Op first = byDeadline.first();
+        if (first.deadline - System.nanoTime() <= 0) {
+            expired++;
+            return first;
+        }
+
+        Op probe = new Op(head, false, null);
+        probe.seq = -1;
+        Op op = byPosition.ceiling(probe);
+        return (op != null) ? op : byPosition.first();
+    }
+
+    private static int compareSeq (Op a, Op b)
+    {
+        return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+    }
+
+    /**
+     * Returns the number of operations waiting to be served.
+     */
+    public synchronized int getDepth ()
+    {
+        return byPosition.size();
+    }
+
+    /**
+     * Returns the highest number of operations that were waiting at once.
+     */
+    public synchronized int getMaxDepth ()
+    {
+        return maxDepth;
+    }
+
+    /**
+     * Returns the number of reads served.
+     */
+    public synchronized long getReads ()
+    {
+        return reads;
+    }
+
+    /**
+     * Returns the number of writes served.
+     */
+    public synchronized long getWrites ()
+    {
+        return writes;
+    }
+
+    /**
+     * Returns the average milliseconds between queueing and finishing a read.
+     */
+    public synchronized long getReadLatency ()
+    {
+        return reads == 0 ? 0 : readNanos / reads / 1000000;
+    }
+
+    /**
+     * Returns the average milliseconds between queueing and finishing a
+     * write.
+     */
+    public synchronized long getWriteLatency ()
+    {
+        return writes == 0 ? 0 : writeNanos / writes / 1000000;
+    }
+
+    /**
+     * Returns the most milliseconds any operation took from being queued to
+     * being finished.
+     */
+    public synchronized long getMaxLatency ()
+    {
+        return maxNanos / 1000000;
+    }
+
+    /**
+     * Returns the number of operations served out of order because their
+     * deadline had passed.
+     */
+    public synchronized long getExpired ()
+    {
+        return expired;
+    }
+
+    @Override
+    public synchronized String toString ()
+    {
+        return "IOScheduler[depth=" + byPosition.size() + ", maxDepth="
+            + maxDepth + ", reads=" + reads + " (" + getReadLatency()
+            + "ms), writes=" + writes + " (" + getWriteLatency()
+            + "ms), maxLatency=" + getMaxLatency() + "ms, expired=" + expired
+            + "]";
+    }
+
+    /**
+     * A queued disk operation.
+     */
+    private static final class Op
+    {
+        final long position;
+
+        final boolean write;
+
+        final Task task;
+
+        final long queued = System.nanoTime();
+
+        long seq;
+
+        long deadline;
+
+        boolean done;
+
+        Throwable failure;
+
+        Op (long position, boolean write, Task task)
+        {
+            this.position = position;
+            this.write = write;
+            this.task = task;
+        }
+
+        synchronized void finish (Throwable failure)
+        {
+            this.failure = failure;
+            done = true;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * MappedFile - Memory mapped view on a file used by Storage.
+ *
+ * This file is part of Snark.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.klomp.snark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Memory maps a file in fixed size windows so that reads and writes become
+ * plain memory copies. A single MappedByteBuffer cannot be bigger than 2GB,
+ * so larger files are covered by multiple windows which are mapped lazily on
+ * first access. A window is only mapped once the file covers it completely,
+ * mapping would otherwise grow files that are short or skipped. No locking is
+ * needed since every access works on its own duplicate of the window buffer.
+ */
+class MappedFile
+{
+    /** The size of one mapped window. */
+    static final long WINDOW_SIZE = 256 * 1024 * 1024;
+
+    private final FileHandleCache handles;
+
+    private final int file;
+
+    private final long length;
+
+    private final FileChannel.MapMode mode;
+
+    private final AtomicReferenceArray<MappedByteBuffer> windows;
+
+    /**
+     * Creates a new MappedFile for the first length bytes of the given file
+     * of the FileHandleCache. The file only needs to be open while a window
+     * is being mapped. When writable is false the file is mapped read only.
+     */
+    MappedFile (FileHandleCache handles, int file, long length,
+        boolean writable)
+    {
+        this.handles = handles;
+        this.file = file;
+        this.length = length;
+        this.mode = writable ? FileChannel.MapMode.READ_WRITE
+            : FileChannel.MapMode.READ_ONLY;
+        int count = (int)((length + WINDOW_SIZE - 1) / WINDOW_SIZE);
+        windows = new AtomicReferenceArray<MappedByteBuffer>(count);
+    }
+
+    /**
+     * Reads up to len bytes starting at position pos of the file into bs.
+     * Returns the number of bytes read, which is less than len when the
+     * file doesn't cover the window of the remaining bytes yet. Those have
+     * to be read through the FileChannel.
+     */
+    int read (long pos, byte[] bs, int off, int len) throws IOException
+    {
+        int done = 0;
+        while (done < len) {
+            ByteBuffer buf = window(pos + done);
+            if (buf == null) {
+                break;
+            }
+            int n = Math.min(len - done, buf.remaining());
+            buf.get(bs, off + done, n);
+            done += n;
+        }
+        return done;
+    }
+
+    /**
+     * Writes up to len bytes from bs to the file starting at position pos.
+     * Returns the number of bytes written, which is less than len when the
+     * file doesn't cover the window of the remaining bytes yet. Those have
+     * to be written through the FileChannel.
+     */
+    int write (long pos, byte[] bs, int off, int len) throws IOException
+    {
+        int done = 0;
+        while (done < len) {
+            ByteBuffer buf = window(pos + done);
+            if (buf == null) {
+                break;
+            }
+            int n = Math.min(len - done, buf.remaining());
+            buf.put(bs, off + done, n);
+            done += n;
+        }
+        return done;
+    }
+
+    /**
+     * Forces all changes made through the mapped windows to disk.
+     */
+    void force ()
+    {
+        if (mode != FileChannel.MapMode.READ_WRITE) {
+            return;
+        }
+        for (int i = 0; i < windows.length(); i++) {
+            MappedByteBuffer mbb = windows.get(i);
+            if (mbb != null) {
+                mbb.force();
+            }
+        }
+    }
+
+    /**
+     * Forces all changes to disk and drops the mapped windows. The windows
+     * are really unmapped when they are garbage collected.
+     */
+    void close ()
+    {
+        force();
+        for (int i = 0; i < windows.length(); i++) {
+            windows.set(i, null);
+        }
+    }
+
+    /**
+     * Returns a private view on the window containing pos, positioned at pos
+     * and limited to the end of the window. Returns null when the file is
+     * shorter than the end of the window.
+     */
+    private ByteBuffer window (long pos) throws IOException
+    {
+        if (pos < 0 || pos >= length) {
+            throw new IOException("Position " + pos + " outside file of "
+                + length + " bytes");
+        }
+
+        int nr = (int)(pos / WINDOW_SIZE);
+        MappedByteBuffer mbb = windows.get(nr);
+        if (mbb == null) {
+            long start = nr * WINDOW_SIZE;
+            long size = Math.min(WINDOW_SIZE, length - start);
+            while (mbb == null) {
+                FileHandleCache.Handle h = handles.acquire(file);
+                try {
+                    if (h.channel.size() < start + size) {
+                        return null;
+                    }
+                    mbb = h.channel.map(mode, start, size);
+                } catch (ClosedChannelException cce) {
+                    // Closed by an interrupted thread using the same handle,
+                    // open the file again unless it was us.
+                    handles.invalidate(h);
+                    if (cce instanceof ClosedByInterruptException) {
+                        throw cce;
+                    }
+                } finally {
+                    handles.release(h);
+                }
+            }
+            // Somebody else might have been faster, use theirs.
+            if (!windows.compareAndSet(nr, null, mbb)) {
+                mbb = windows.get(nr);
+            }
+        }
+
+        ByteBuffer buf = mbb.duplicate();
+        buf.position((int)(pos - nr * WINDOW_SIZE));
+        return buf;
+    }
+}
@@ -22,6 +22,7 @@ package org.klomp.snark;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
 
 // Used to queue outgoing connections
 // sendMessage() should be used to translate them to wire format.
@@ -66,8 +67,32 @@ class Message
 
     int len;
 
-    /** Utility method for sending a message through a DataStream. */
-    void sendMessage (DataOutputStream dos) throws IOException
+    // Used for PIECE messages that are send straight from the file instead
+    // of from data.
+    FileRegion[] regions;
+
+    // Whether data was taken from the BufferPool and has to be given back
+    // once the message has been send or dropped.
+    boolean pooled;
+
+    /**
+     * Gives the data back to the BufferPool when it came from there.
+     */
+    void release ()
+    {
+        if (pooled && data != null) {
+            BufferPool.getPool().release(data);
+        }
+        data = null;
+    }
+
+    /**
+     * Utility method for sending a message through a DataStream. File regions
+     * are written to the given channel, which must write to the same
+     * connection as the DataStream.
+     */
+    void sendMessage (DataOutputStream dos, WritableByteChannel channel)
+        throws IOException
     {
         // KEEP_ALIVE is special.
         if (type == KEEP_ALIVE) {
@@ -120,7 +145,13 @@ class Message
         }
 
         // Send actual data
-        if (type == BITFIELD || type == PIECE) {
+        if (regions != null) {
+            // Make sure the header goes out before the data.
+            dos.flush();
+            for (FileRegion region : regions) {
+                region.transferTo(channel);
+            }
+        } else if (type == BITFIELD || type == PIECE) {
             dos.write(data, off, len);
         }
     }
@@ -287,8 +287,26 @@ public class MetaInfo
             throw new InternalError("No SHA digest available: " + nsae);
         }
 
+        return checkPiece(sha1, piece, bs, off, length);
+    }
+
+    /**
+     * Checks that the given piece has the same SHA1 hash as the given byte
+     * array using the given (reset) SHA1 MessageDigest. Can be used to reuse
+     * the digest when checking lots of pieces.
+     */
+    public boolean checkPiece (MessageDigest sha1, int piece, byte[] bs,
+        int off, int length)
+    {
         sha1.update(bs, off, length);
-        byte[] hash = sha1.digest();
+        return checkHash(piece, sha1.digest());
+    }
+
+    /**
+     * Checks that the given piece has the given SHA1 hash.
+     */
+    public boolean checkHash (int piece, byte[] hash)
+    {
         for (int i = 0; i < 20; i++) {
             if (hash[i] != piece_hashes[20 * piece + i]) {
                 return false;
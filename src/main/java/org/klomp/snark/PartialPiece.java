@@ -0,0 +1,358 @@
+/*
+ * PartialPiece - A piece that is being downloaded.
+ *
+ * This file is part of Snark.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.klomp.snark;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A piece that is being downloaded. Blocks are hashed as soon as they arrive
+ * so that only the digest has to be finished when the last block is in.
+ * Blocks that arrive out of order are kept till the blocks before them have
+ * arrived. Blocks that were stored by an earlier download of the piece are
+ * not requested again. The array holding the piece comes from the BufferPool and is
+ * either handed off once the piece is complete or released when the piece is
+ * abandoned.
+ *
+ * In the endgame several peers download the same PartialPiece, see share().
+ * A block is only read into the array by the first peer that claims it, so
+ * nothing is read into the array once it is complete. The peers that
+ * requested each block are kept so that only they have to be told when the
+ * block arrived. The array is released when the last peer has left the piece.
+ */
+class PartialPiece
+{
+    final int piece;
+
+    final byte[] bs;
+
+    private final MessageDigest digest;
+
+    // Number of bytes from the start of the piece that have been hashed.
+    private int hashed;
+
+    // Blocks (begin -> length) that arrived but could not be hashed yet.
+    private final SortedMap<Integer, Integer> waiting = new TreeMap<Integer, Integer>();
+
+    // Whether bs has been handed off or given back to the pool.
+    private boolean done;
+
+    // The blocks that are in bs, received or stored by an earlier download,
+    // and the blocks being read into bs right now.
+    private final BitField have;
+
+    private final BitField claimed;
+
+    // The blocks that have been requested from some peer and the peers
+    // (block -> peers) that still have to send them.
+    private final BitField requested;
+
+    private final Map<Integer, List<Peer>> requesters = new HashMap<Integer, List<Peer>>();
+
+    // The peers downloading the piece.
+    private final List<Peer> users = new ArrayList<Peer>();
+
+    // The pieces that can still be shared, by their array.
+    private static final Map<byte[], PartialPiece> shareable = new IdentityHashMap<byte[], PartialPiece>();
+
+    PartialPiece (Peer peer, int piece, int length)
+    {
+        this.piece = piece;
+        this.bs = BufferPool.getPool().acquire(length);
+        try {
+            digest = MessageDigest.getInstance("SHA");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new InternalError("No SHA digest available: " + nsae);
+        }
+        int blocks = (length + Storage.BLOCK_SIZE - 1) / Storage.BLOCK_SIZE;
+        have = new BitField(blocks);
+        claimed = new BitField(blocks);
+        requested = new BitField(blocks);
+        users.add(peer);
+        synchronized (shareable) {
+            shareable.put(bs, this);
+        }
+    }
+
+    /**
+     * Returns the PartialPiece of the given piece that is received into the
+     * given array after adding the peer to its users, or null when that
+     * piece is no longer being downloaded.
+     */
+    static PartialPiece share (byte[] bs, int piece, Peer peer)
+    {
+        PartialPiece partial;
+        synchronized (shareable) {
+            partial = shareable.get(bs);
+        }
+        if (partial == null) {
+            return null;
+        }
+        synchronized (partial) {
+            if (partial.done || partial.piece != piece
+                || partial.users.isEmpty()) {
+                return null;
+            }
+            if (!partial.users.contains(peer)) {
+                partial.users.add(peer);
+            }
+            return partial;
+        }
+    }
+
+    /**
+     * Returns the PartialPiece that is received into the given array, or
+     * null when it is no longer being downloaded.
+     */
+    static PartialPiece get (byte[] bs)
+    {
+        synchronized (shareable) {
+            return shareable.get(bs);
+        }
+    }
+
+    /**
+     * Called when the block at begin has been requested from the peer.
+     */
+    synchronized void requested (int begin, Peer peer)
+    {
+        Integer block = new Integer(begin / Storage.BLOCK_SIZE);
+        requested.set(block.intValue());
+        List<Peer> peers = requesters.get(block);
+        if (peers == null) {
+            peers = new ArrayList<Peer>(1);
+            requesters.put(block, peers);
+        }
+        if (!peers.contains(peer)) {
+            peers.add(peer);
+        }
+    }
+
+    /**
+     * Called when the peer will not send the block at begin because it
+     * dropped the request.
+     */
+    synchronized void unrequested (int begin, Peer peer)
+    {
+        Integer block = new Integer(begin / Storage.BLOCK_SIZE);
+        List<Peer> peers = requesters.get(block);
+        if (peers != null && peers.remove(peer) && peers.isEmpty()) {
+            requesters.remove(block);
+            requested.clear(block.intValue());
+        }
+    }
+
+    /**
+     * Returns the peers other than the given one that requested the block
+     * at begin and forgets about them. Called when the block arrived from the
+     * given peer.
+     */
+    synchronized List<Peer> requesters (int begin, Peer peer)
+    {
+        List<Peer> peers = requesters.remove(new Integer(begin
+            / Storage.BLOCK_SIZE));
+        if (peers == null) {
+            return Collections.emptyList();
+        }
+        peers.remove(peer);
+        return peers;
+    }
+
+    /**
+     * Returns the number of blocks that are not in bs and that have not been
+     * requested from any peer yet.
+     */
+    synchronized int unrequested ()
+    {
+        int count = 0;
+        for (int i = have.nextClearBit(0); i != -1; i = have.nextClearBit(i + 1)) {
+            if (!requested.get(i)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Called when the block of length bytes at begin has been read into bs.
+     */
+    synchronized void received (int begin, int length)
+    {
+        int block = begin / Storage.BLOCK_SIZE;
+        have.set(block);
+        claimed.clear(block);
+
+        if (begin + length <= hashed) {
+            return; // Already seen.
+        }
+        waiting.put(begin, length);
+
+        // Hash all blocks that are now in order.
+        while (!waiting.isEmpty() && waiting.firstKey() <= hashed) {
+            int b = waiting.firstKey();
+            int end = b + waiting.remove(b);
+            if (end > hashed) {
+                digest.update(bs, hashed, end - hashed);
+                hashed = end;
+            }
+        }
+    }
+
+    /**
+     * Called when the given blocks of Storage.BLOCK_SIZE bytes have been read
+     * into bs from an earlier download of the piece. When all blocks were
+     * stored the last one is taken as missing, it is requested again to
+     * complete the piece.
+     */
+    synchronized void storedBlocks (BitField blocks)
+    {
+        int last = (blocks.cardinality() == blocks.size()) ? blocks.size() - 1
+            : -1;
+        for (int i = blocks.nextSetBit(0); i != -1; i = blocks.nextSetBit(i + 1)) {
+            if (i != last) {
+                int begin = i * Storage.BLOCK_SIZE;
+                received(begin, Math.min(Storage.BLOCK_SIZE, bs.length - begin));
+            }
+        }
+    }
+
+    /**
+     * Returns the offset of the first block at or after begin that is not
+     * in bs and not being read into it, or -1 when there is none.
+     */
+    synchronized int nextMissing (int begin)
+    {
+        if (begin >= bs.length) {
+            return -1;
+        }
+        int block = have.nextClearBit(begin / Storage.BLOCK_SIZE);
+        while (block != -1 && claimed.get(block)) {
+            block = have.nextClearBit(block + 1);
+        }
+        return (block == -1) ? -1 : block * Storage.BLOCK_SIZE;
+    }
+
+    /**
+     * Claims the block at begin for reading it into bs. Returns false when
+     * the block is already in bs or another peer is reading it, the block
+     * should then be thrown away.
+     */
+    synchronized boolean claim (int begin)
+    {
+        int block = begin / Storage.BLOCK_SIZE;
+        if (done || have.get(block) || claimed.get(block)) {
+            return false;
+        }
+        claimed.set(block);
+        return true;
+    }
+
+    /**
+     * Gives up the claim on a block that could not be read completely.
+     */
+    synchronized void unclaim (int begin)
+    {
+        claimed.clear(begin / Storage.BLOCK_SIZE);
+    }
+
+    /**
+     * Returns true when all bytes of the piece have been received.
+     */
+    synchronized boolean isComplete ()
+    {
+        return hashed == bs.length;
+    }
+
+    /**
+     * Returns the SHA1 hash of the piece. Bytes that were not reported
+     * through received() are hashed as they are. Can only be called once.
+     */
+    synchronized byte[] getHash ()
+    {
+        if (hashed < bs.length) {
+            digest.update(bs, hashed, bs.length - hashed);
+            hashed = bs.length;
+        }
+        waiting.clear();
+        return digest.digest();
+    }
+
+    /**
+     * Marks the array as handed off to whoever stores the piece, which
+     * becomes responsible for releasing it. Returns false when the array was
+     * already handed off or released.
+     */
+    synchronized boolean handOff ()
+    {
+        if (done) {
+            return false;
+        }
+        done = true;
+        unshare();
+        return true;
+    }
+
+    /**
+     * Removes the peer from the users of the piece. Returns true when it was
+     * the last one and the piece wasn't handed off, the download of the
+     * piece is then abandoned.
+     */
+    synchronized boolean leave (Peer peer)
+    {
+        return users.remove(peer) && users.isEmpty() && !done;
+    }
+
+    /**
+     * Gives the array back to the BufferPool when all peers have left the
+     * piece, unless it was handed off or released before. Must only be
+     * called when nothing reads into the array anymore.
+     */
+    synchronized void release ()
+    {
+        if (!done && users.isEmpty()) {
+            done = true;
+            unshare();
+            BufferPool.getPool().release(bs);
+        }
+    }
+
+    private void unshare ()
+    {
+        synchronized (shareable) {
+            if (shareable.get(bs) == this) {
+                shareable.remove(bs);
+            }
+        }
+    }
+
+    @Override
+    public String toString ()
+    {
+        return "PartialPiece[" + piece + ", " + hashed + "/" + bs.length + "]";
+    }
+}
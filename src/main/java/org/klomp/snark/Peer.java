@@ -25,7 +25,9 @@ import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -45,10 +47,19 @@ public class Peer implements Comparable<Peer>
 
     private DataOutputStream dout;
 
+    // The channel of the socket, null if the socket doesn't have one.
+    private SocketChannel channel;
+
+    // Whether the outgoing connection is opened through a channel.
+    private boolean zeroCopy;
+
     // Keeps state for in/out connections. Non-null when the handshake
     // was successful, the connection setup and runs
     PeerState state;
 
+    // The bitfield send as first message.
+    private BitField sentBitField;
+
     private boolean deregister = true;
 
     /**
@@ -81,6 +92,7 @@ public class Peer implements Comparable<Peer>
 
         byte[] id = handshake(bis, bos);
         this.peerID = new PeerID(id, sock.getInetAddress(), sock.getPort());
+        this.channel = sock.getChannel();
     }
 
     /**
@@ -132,6 +144,17 @@ public class Peer implements Comparable<Peer>
         return peerID.compareTo(p.peerID);
     }
 
+    /**
+     * Sets whether the connection opened by runConnection() uses a socket
+     * channel, so pieces can be send straight from the files. Older runtimes
+     * block writes to the streams of such a socket while a read is waiting,
+     * so only use it for zero copy sending.
+     */
+    void setZeroCopy (boolean zeroCopy)
+    {
+        this.zeroCopy = zeroCopy;
+    }
+
     /**
      * Runs the connection to the other peer. This method does not return until
      * the connection is terminated.
@@ -141,7 +164,8 @@ public class Peer implements Comparable<Peer>
      * could not be setup correctly the disconnected() method is called.
      * 
      * If the given BitField is non-null it is send to the peer as first
-     * message.
+     * message. It should be a snapshot, see BitField.snapshot(), since it is
+     * kept to find out which pieces were added later.
      */
     public void runConnection (PeerListener listener, BitField bitfield)
     {
@@ -152,7 +176,16 @@ public class Peer implements Comparable<Peer>
         try {
             // Do we need to handshake?
             if (din == null) {
-                Socket sock = new Socket(peerID.getAddress(), peerID.getPort());
+                Socket sock;
+                if (zeroCopy) {
+                    // Use a channel so pieces can be send straight from
+                    // files.
+                    channel = SocketChannel.open(new InetSocketAddress(
+                        peerID.getAddress(), peerID.getPort()));
+                    sock = channel.socket();
+                } else {
+                    sock = new Socket(peerID.getAddress(), peerID.getPort());
+                }
                 BufferedInputStream bis = new BufferedInputStream(
                     sock.getInputStream());
                 BufferedOutputStream bos = new BufferedOutputStream(
@@ -167,12 +200,13 @@ public class Peer implements Comparable<Peer>
             }
 
             PeerConnectionIn in = new PeerConnectionIn(this, din);
-            PeerConnectionOut out = new PeerConnectionOut(this, dout);
+            PeerConnectionOut out = new PeerConnectionOut(this, dout, channel);
             PeerState s = new PeerState(this, listener, metainfo, in, out);
 
             // Send our bitmap
             if (bitfield != null) {
                 s.out.sendBitfield(bitfield);
+                sentBitField = bitfield;
             }
 
             // We are up and running!
@@ -292,6 +326,18 @@ public class Peer implements Comparable<Peer>
         }
     }
 
+    /**
+     * Cancels our request for the given block, when we made one. Used in the
+     * endgame when the block came from another peer.
+     */
+    void cancel (int piece, int begin, int length)
+    {
+        PeerState s = state;
+        if (s != null) {
+            s.cancelRequest(piece, begin, length);
+        }
+    }
+
     /**
      * Whether or not the peer is interested in pieces we have. Returns false if
      * not connected.
@@ -325,6 +371,25 @@ public class Peer implements Comparable<Peer>
         return (s != null) && s.interesting;
     }
 
+    /**
+     * Returns the BitField that was send to the peer when connecting, or null
+     * when none was send.
+     */
+    BitField getSentBitField ()
+    {
+        return sentBitField;
+    }
+
+    /**
+     * Returns a snapshot of the pieces the peer has, or null when not
+     * connected or not known yet.
+     */
+    public BitField getBitField ()
+    {
+        PeerState s = state;
+        return (s != null) ? s.getBitField() : null;
+    }
+
     /**
      * Sets whether or not we are choking the peer. Defaults to true. When choke
      * is false and the peer requests some pieces we upload them, otherwise
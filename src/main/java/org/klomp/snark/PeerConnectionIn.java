@@ -58,8 +58,8 @@ class PeerConnectionIn implements Runnable
     public void run ()
     {
         thread = Thread.currentThread();
+        PeerState ps = peer.state;
         try {
-            PeerState ps = peer.state;
             while (!quit && ps != null) {
                 // Common variables used for some messages.
                 int piece;
@@ -143,6 +143,9 @@ class PeerConnectionIn implements Runnable
             log.log(Level.SEVERE, peer + " failed", t);
         } finally {
             peer.disconnect();
+            if (ps != null) {
+                ps.releaseBuffers();
+            }
         }
     }
 
@@ -22,6 +22,8 @@ package org.klomp.snark;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -34,16 +36,26 @@ class PeerConnectionOut implements Runnable
 
     private final DataOutputStream dout;
 
+    // Where file regions are written to, the socket channel if there is one.
+    private final WritableByteChannel channel;
+
     private Thread thread;
 
     private boolean quit;
 
     private List<Message> sendQueue = new ArrayList<Message>();
 
-    public PeerConnectionOut (Peer peer, DataOutputStream dout)
+    /**
+     * Creates a new PeerConnectionOut that sends messages through dout. When
+     * the connection has a socket channel it should be given so pieces can
+     * be send from files without copying, otherwise it can be null.
+     */
+    public PeerConnectionOut (Peer peer, DataOutputStream dout,
+        WritableByteChannel channel)
     {
         this.peer = peer;
         this.dout = dout;
+        this.channel = (channel != null) ? channel : Channels.newChannel(dout);
 
         quit = false;
         thread = new Thread(this);
@@ -87,6 +99,7 @@ class PeerConnectionOut implements Runnable
                             if (nm.type == Message.PIECE) {
                                 if (state.choking) {
                                     it.remove();
+                                    nm.release();
                                 }
                                 nm = null;
                             } else if (nm.type == Message.REQUEST
@@ -107,7 +120,11 @@ class PeerConnectionOut implements Runnable
                 }
                 if (m != null) {
                     log.log(Level.ALL, "Send " + peer + ": " + m);
-                    m.sendMessage(dout);
+                    try {
+                        m.sendMessage(dout, channel);
+                    } finally {
+                        m.release();
+                    }
 
                     // Remove all piece messages after sending a choke message.
                     if (m.type == Message.CHOKE) {
@@ -127,7 +144,10 @@ class PeerConnectionOut implements Runnable
         } catch (Throwable t) {
             log.log(Level.SEVERE, peer + " failed", t);
         } finally {
-            quit = true;
+            synchronized (sendQueue) {
+                quit = true;
+                clearQueue();
+            }
             peer.disconnect();
         }
     }
@@ -142,18 +162,32 @@ class PeerConnectionOut implements Runnable
             quit = true;
             thread.interrupt();
 
-            sendQueue.clear();
+            clearQueue();
             sendQueue.notify();
         }
     }
 
+    // Drops all queued messages, must hold the sendQueue lock.
+    private void clearQueue ()
+    {
+        for (Message m : sendQueue) {
+            m.release();
+        }
+        sendQueue.clear();
+    }
+
     /**
      * Adds a message to the sendQueue and notifies the method waiting on the
-     * sendQueue to change.
+     * sendQueue to change. The message is dropped when the connection is
+     * closed.
      */
     private void addMessage (Message m)
     {
         synchronized (sendQueue) {
+            if (quit) {
+                m.release();
+                return;
+            }
             sendQueue.add(m);
             sendQueue.notify();
         }
@@ -176,6 +210,7 @@ class PeerConnectionOut implements Runnable
                 Message m = (Message)it.next();
                 if (m.type == type) {
                     it.remove();
+                    m.release();
                     removed = true;
                 }
             }
@@ -233,6 +268,10 @@ class PeerConnectionOut implements Runnable
         addMessage(m);
     }
 
+    /**
+     * Queues a bitfield message. The bits are taken now, pass a snapshot,
+     * see BitField.snapshot(), when the BitField can change meanwhile.
+     */
     void sendBitfield (BitField bitfield)
     {
         Message m = new Message();
@@ -262,6 +301,11 @@ class PeerConnectionOut implements Runnable
         addMessage(m);
     }
 
+    /**
+     * Queues a piece message for the block of length bytes at begin of the
+     * given piece. The given array contains just the block and comes from
+     * the BufferPool, it is given back once it has been send or dropped.
+     */
     void sendPiece (int piece, int begin, int length, byte[] bytes)
     {
         Message m = new Message();
@@ -270,7 +314,24 @@ class PeerConnectionOut implements Runnable
         m.begin = begin;
         m.length = length;
         m.data = bytes;
-        m.off = begin;
+        m.off = 0;
+        m.len = length;
+        m.pooled = true;
+        addMessage(m);
+    }
+
+    /**
+     * Queues a piece message for the block of length bytes at begin of the
+     * given piece that is send straight from the given file regions.
+     */
+    void sendPiece (int piece, int begin, int length, FileRegion[] regions)
+    {
+        Message m = new Message();
+        m.type = Message.PIECE;
+        m.piece = piece;
+        m.begin = begin;
+        m.length = length;
+        m.regions = regions;
         m.len = length;
         addMessage(m);
     }
@@ -310,6 +371,7 @@ class PeerConnectionOut implements Runnable
                 if (m.type == Message.PIECE && m.piece == piece
                     && m.begin == begin && m.length == length) {
                     it.remove();
+                    m.release();
                 }
             }
         }
@@ -21,11 +21,14 @@
 package org.klomp.snark;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -42,6 +45,23 @@ public class PeerCoordinator implements PeerListener
     // package local for access by CheckDownLoadersTask
     final static long CHECK_PERIOD = 20 * 1000; // 20 seconds
 
+    // How often the storage resume data is written.
+    final static long RESUME_PERIOD = 60 * 1000; // 1 minute
+
+    // How often is checked whether batched writes are due to be synced.
+    final static long SYNC_PERIOD = 1000; // 1 second
+
+    // How many bytes of received pieces and blocks can wait for the disk
+    // before peers block.
+    final static int WRITE_QUEUE_SIZE = 4 * 1024 * 1024;
+
+    // Number of threads writing pieces to the storage. Must be one since the
+    // blocks of a piece have to be written before the piece.
+    final static int WRITER_THREADS = 1;
+
+    // How many bytes can be read ahead for sequential uploads at once.
+    final static long READ_AHEAD_SIZE = 8 * 1024 * 1024;
+
     final static int MAX_CONNECTIONS = 24;
 
     final static int MAX_UPLOADERS = 4;
@@ -65,13 +85,36 @@ public class PeerCoordinator implements PeerListener
 
     private final byte[] id;
 
-    // Some random wanted pieces
-    private final List<Integer> wantedPieces;
+    // Knows which pieces are wanted and how rare they are. Synchronize on
+    // it when using it or any of the fields guarded by it.
+    private final PiecePicker picker;
+
+    // The pieces each peer has as counted in the availability of the
+    // picker, guarded by picker.
+    private final Map<Peer, BitField> peerPieces = new IdentityHashMap<Peer, BitField>();
+
+    // The arrays of the pieces of which the received blocks are stored,
+    // guarded by picker. Only one download of a piece stores its blocks so
+    // that the stored blocks all come from the same download. In the
+    // endgame other peers join that download, see sharePiece().
+    private final Map<Integer, byte[]> blockOwners = new HashMap<Integer, byte[]>();
+
+    // When the endgame started, 0 when not in the endgame, and how long the
+    // endgames before took. Guarded by picker.
+    private long endgameStart;
+
+    private long endgameTime;
 
     private boolean halted = false;
 
     private final CoordinatorListener listener;
 
+    // Writes the received pieces to the storage.
+    private final DiskWriter writer;
+
+    // Prefetches pieces that peers download sequentially.
+    private final ReadAhead readAhead;
+
     private TrackerClient client;
 
     public PeerCoordinator (byte[] id, MetaInfo metainfo, Storage storage,
@@ -82,18 +125,42 @@ public class PeerCoordinator implements PeerListener
         this.storage = storage;
         this.listener = listener;
 
-        // Make a random list of piece numbers
-        wantedPieces = new ArrayList<Integer>();
+        // We want all missing pieces that aren't skipped.
+        int pieces = metainfo.getPieces();
+        picker = new PiecePicker(pieces, pieces - storage.needed());
         BitField bitfield = storage.getBitField();
-        for (int i = 0; i < metainfo.getPieces(); i++) {
-            if (!bitfield.get(i)) {
-                wantedPieces.add(i);
-            }
+        for (int i = 0; i < pieces; i++) {
+            int priority = storage.getPiecePriority(i);
+            picker.setPriority(i, priority);
+            picker.setWanted(i, !bitfield.get(i)
+                && priority != Storage.PRIORITY_SKIP);
         }
-        Collections.shuffle(wantedPieces);
+
+        writer = new DiskWriter(storage, new DiskWriter.Listener() {
+            public void pieceWritten (int piece)
+            {
+                PeerCoordinator.this.pieceWritten(piece);
+            }
+
+            public void writeFailed (int piece, IOException ioe)
+            {
+                // The piece never made it to disk, get it again.
+                synchronized (picker) {
+                    picker.setWanted(piece, true);
+                }
+            }
+        }, WRITE_QUEUE_SIZE, WRITER_THREADS);
+
+        readAhead = new ReadAhead(storage, READ_AHEAD_SIZE);
 
         // Install a timer to check the uploaders.
         timer.schedule(new PeerCheckerTask(this), CHECK_PERIOD, CHECK_PERIOD);
+
+        // And one to save the storage state once in a while.
+        timer.schedule(new ResumeTask(storage), RESUME_PERIOD, RESUME_PERIOD);
+
+        // And one to sync batched writes when no more pieces come in.
+        timer.schedule(new SyncTask(storage), SYNC_PERIOD, SYNC_PERIOD);
     }
 
     public void setTracker (TrackerClient client)
@@ -106,6 +173,51 @@ public class PeerCoordinator implements PeerListener
         return id;
     }
 
+    /**
+     * Changes the download priority of a file, see
+     * Storage.setFilePriority(). Pieces of files that are no longer skipped
+     * are requested from the peers that have them.
+     */
+    public void setFilePriority (int file, int priority) throws IOException
+    {
+        storage.setFilePriority(file, priority);
+
+        BitField bitfield = storage.getBitFieldSnapshot();
+        List<Integer> added = new ArrayList<Integer>();
+        synchronized (picker) {
+            for (int i = 0; i < metainfo.getPieces(); i++) {
+                int old = picker.getPriority(i);
+                int current = storage.getPiecePriority(i);
+                if (old == current) {
+                    continue;
+                }
+                picker.setPriority(i, current);
+                if (current == Storage.PRIORITY_SKIP) {
+                    picker.setWanted(i, false);
+                } else if (old == Storage.PRIORITY_SKIP && !bitfield.get(i)) {
+                    picker.setWanted(i, true);
+                    added.add(i);
+                }
+            }
+        }
+
+        if (!added.isEmpty()) {
+            synchronized (peers) {
+                for (Peer peer : peers) {
+                    BitField have = peer.getBitField();
+                    if (have != null && !peer.isInteresting()) {
+                        for (Integer p : added) {
+                            if (have.get(p.intValue())) {
+                                peer.setInteresting(true);
+                                break;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
     public boolean completed ()
     {
         return storage.complete();
@@ -170,6 +282,10 @@ public class PeerCoordinator implements PeerListener
                 it.remove();
             }
         }
+
+        // Make sure all received pieces end up in the storage.
+        writer.close();
+        readAhead.halt();
     }
 
     public void connected (Peer peer)
@@ -192,6 +308,19 @@ public class PeerCoordinator implements PeerListener
                 peers.add(0, peer);
                 unchokePeer();
 
+                // Pieces stored from now on are announced by pieceWritten(),
+                // announce the ones stored since our bitfield was taken.
+                BitField sent = peer.getSentBitField();
+                BitField current = storage.getBitFieldSnapshot();
+                if (sent != null && sent.getVersion() != current.getVersion()) {
+                    BitField added = new BitField(current);
+                    added.andNot(sent);
+                    for (int i = added.nextSetBit(0); i != -1; i = added
+                        .nextSetBit(i + 1)) {
+                        peer.have(i);
+                    }
+                }
+
                 if (listener != null) {
                     listener.peerChange(this, peer);
                 }
@@ -225,7 +354,8 @@ public class PeerCoordinator implements PeerListener
         if (need_more) {
             // Run the peer with us as listener and the current bitfield.
             final PeerListener listener = this;
-            final BitField bitfield = storage.getBitField();
+            final BitField bitfield = storage.getBitFieldSnapshot();
+            peer.setZeroCopy(storage.isZeroCopy());
             Runnable r = new Runnable() {
                 public void run ()
                 {
@@ -277,7 +407,7 @@ public class PeerCoordinator implements PeerListener
 
     public byte[] getBitMap ()
     {
-        return storage.getBitField().getFieldBytes();
+        return storage.getBitFieldSnapshot().getFieldBytes();
     }
 
     /**
@@ -289,8 +419,17 @@ public class PeerCoordinator implements PeerListener
             listener.peerChange(this, peer);
         }
 
-        synchronized (wantedPieces) {
-            return wantedPieces.contains(new Integer(piece));
+        synchronized (picker) {
+            BitField counted = peerPieces.get(peer);
+            if (counted == null) {
+                counted = new BitField(metainfo.getPieces());
+                peerPieces.put(peer, counted);
+            }
+            if (!counted.get(piece)) {
+                counted.set(piece);
+                picker.peerHas(piece);
+            }
+            return picker.isWanted(piece);
         }
     }
 
@@ -304,21 +443,27 @@ public class PeerCoordinator implements PeerListener
             listener.peerChange(this, peer);
         }
 
-        synchronized (wantedPieces) {
-            Iterator it = wantedPieces.iterator();
-            while (it.hasNext()) {
-                int i = ((Integer)it.next()).intValue();
-                if (bitfield.get(i)) {
-                    return true;
-                }
+        synchronized (picker) {
+            BitField counted = peerPieces.get(peer);
+            if (counted == null) {
+                counted = new BitField(metainfo.getPieces());
+                peerPieces.put(peer, counted);
             }
+            BitField added = new BitField(bitfield);
+            added.andNot(counted);
+            counted.or(added);
+            for (int i = added.nextSetBit(0); i != -1; i = added
+                .nextSetBit(i + 1)) {
+                picker.peerHas(i);
+            }
+            return picker.wantsAny(bitfield);
         }
-        return false;
     }
 
     /**
      * Returns one of pieces in the given BitField that is still wanted or -1 if
-     * none of the given pieces are wanted.
+     * none of the given pieces are wanted. Pieces of higher priority come
+     * first, then the rarest pieces, see PiecePicker.
      */
     public int wantPiece (Peer peer, BitField havePieces)
     {
@@ -326,50 +471,129 @@ public class PeerCoordinator implements PeerListener
             return -1;
         }
 
-        synchronized (wantedPieces) {
-            Integer piece = null;
-            Iterator it = wantedPieces.iterator();
-            while (piece == null && it.hasNext()) {
-                Integer i = (Integer)it.next();
-                if (havePieces.get(i.intValue())) {
-                    it.remove();
-                    piece = i;
-                }
-            }
+        synchronized (picker) {
+            updateEndgame();
+            return picker.pick(havePieces, storage.getStreamCursor());
+        }
+    }
 
-            if (piece == null) {
-                return -1;
+    // Starts the endgame when all wanted pieces are being downloaded and
+    // all their blocks have been requested, ends it when that is no longer
+    // so. Called with picker locked.
+    private void updateEndgame ()
+    {
+        boolean endgame = picker.allStarted() && unrequestedBlocks() == 0;
+        picker.setEndgame(endgame);
+        if (endgame && endgameStart == 0) {
+            endgameStart = System.currentTimeMillis();
+            log.log(Level.FINE, "Endgame started, " + storage.needed()
+                + " pieces left");
+        } else if (!endgame && endgameStart != 0) {
+            long time = System.currentTimeMillis() - endgameStart;
+            endgameTime += time;
+            endgameStart = 0;
+            log.log(Level.FINE, "Endgame ended after " + time + " ms");
+        }
+    }
+
+    // The number of blocks of the pieces being downloaded that haven't been
+    // requested yet. Called with picker locked.
+    private int unrequestedBlocks ()
+    {
+        int count = 0;
+        for (byte[] bs : blockOwners.values()) {
+            PartialPiece partial = PartialPiece.get(bs);
+            if (partial != null) {
+                count += partial.unrequested();
             }
+        }
+        return count;
+    }
 
-            // We add it back at the back of the list. It will be removed
-            // if gotPiece is called later. This means that the last
-            // couple of pieces might very well be asked from multiple
-            // peers but that is OK.
-            wantedPieces.add(piece);
+    /**
+     * Returns true when every block still wanted has been requested. The
+     * remaining blocks are then requested from every peer that has them and
+     * requests for blocks that arrived are cancelled.
+     */
+    public boolean isEndgame ()
+    {
+        synchronized (picker) {
+            return endgameStart != 0;
+        }
+    }
 
-            return piece.intValue();
+    /**
+     * Returns how many milliseconds have been spent in the endgame, including
+     * the current one.
+     */
+    public long getEndgameTime ()
+    {
+        synchronized (picker) {
+            if (endgameStart != 0) {
+                return endgameTime + System.currentTimeMillis() - endgameStart;
+            }
+            return endgameTime;
+        }
+    }
+
+    /**
+     * Sets how many pieces after the stream cursor of the storage, see
+     * Storage.getStreamCursor(), are fetched before any other pieces. The
+     * window starts at the first missing piece from the cursor, or from the
+     * start of the torrent when no stream is read. Zero, the default,
+     * disables streaming.
+     */
+    public void setStreamWindow (int pieces)
+    {
+        synchronized (picker) {
+            picker.setStreamWindow(pieces);
         }
     }
 
     /**
-     * Returns a byte array containing the requested piece or null of the piece
-     * is unknown.
+     * Returns a byte array containing the requested block or null of the
+     * piece is unknown.
      */
-    public byte[] gotRequest (Peer peer, int piece)
+    public byte[] gotRequest (Peer peer, int piece, int begin, int length)
         throws IOException
     {
         if (halted) {
             return null;
         }
 
+        readAhead.requested(peer, piece, begin, length);
+        byte[] bs = BufferPool.getPool().acquire(length);
         try {
-            return storage.getPiece(piece);
+            if (storage.getBlock(piece, begin, length, bs, 0)) {
+                return bs;
+            }
+            BufferPool.getPool().release(bs);
+            return null;
         } catch (IOException ioe) {
+            BufferPool.getPool().release(bs);
             Snark.abort("Error reading storage", ioe);
             return null; // Never reached.
         }
     }
 
+    /**
+     * Returns the file regions containing the requested block or null when
+     * the block should be send from memory.
+     */
+    public FileRegion[] gotRegionRequest (Peer peer, int piece, int begin,
+        int length) throws IOException
+    {
+        if (halted) {
+            return null;
+        }
+
+        FileRegion[] regions = storage.getRegions(piece, begin, length);
+        if (regions != null) {
+            readAhead.requested(peer, piece, begin, length);
+        }
+        return regions;
+    }
+
     /**
      * Called when a peer has uploaded some bytes of a piece.
      */
@@ -398,40 +622,172 @@ public class PeerCoordinator implements PeerListener
      * Returns false if the piece is no good (according to the hash). In that
      * case the peer that supplied the piece should probably be blacklisted.
      */
-    public boolean gotPiece (Peer peer, int piece, byte[] bs)
+    public boolean gotPiece (Peer peer, int piece, byte[] bs, byte[] hash)
         throws IOException
     {
         if (halted) {
+            BufferPool.getPool().release(bs);
             return true; // We don't actually care anymore.
         }
 
-        synchronized (wantedPieces) {
-            Integer p = new Integer(piece);
-            if (!wantedPieces.contains(p)) {
+        Integer p = new Integer(piece);
+        boolean blocksStored;
+        synchronized (picker) {
+            picker.stopped(piece);
+            blocksStored = blockOwners.get(p) == bs;
+            if (blocksStored) {
+                blockOwners.remove(p);
+            }
+            if (!picker.isWanted(piece)) {
                 log.log(Level.FINER, peer + " piece " + piece
                     + " no longer needed");
+                BufferPool.getPool().release(bs);
 
                 // No need to announce have piece to peers.
                 // Assume we got a good piece, we don't really care anymore.
                 return true;
             }
+        }
 
-            try {
-                if (storage.putPiece(piece, bs)) {
-                    log.log(Level.FINER, "Recv p" + piece + " " + peer);
-                } else {
-                    // Oops. We didn't actually download this then... :(
-                    downloaded -= metainfo.getPieceLength(piece);
-                    log.log(Level.INFO, "Got BAD piece " + piece + " from "
-                        + peer);
-                    return false; // No need to announce BAD piece to peers.
+        // The hash was calculated while the blocks came in.
+        if (!storage.verifyHash(piece, hash)) {
+            // Oops. We didn't actually download this then... :(
+            downloaded -= metainfo.getPieceLength(piece);
+            log.log(Level.INFO, "Got BAD piece " + piece + " from " + peer);
+            if (blocksStored) {
+                writer.discard(piece);
+            }
+            BufferPool.getPool().release(bs);
+            return false; // No need to announce BAD piece to peers.
+        }
+
+        synchronized (picker) {
+            // Another peer might have delivered it while we were checking.
+            if (!picker.isWanted(piece)) {
+                BufferPool.getPool().release(bs);
+                return true;
+            }
+            picker.gotPiece(piece);
+            updateEndgame();
+        }
+
+        log.log(Level.FINER, "Recv p" + piece + " " + peer);
+
+        // The piece is announced when the writer is done with it.
+        try {
+            if (!writer.write(piece, bs, blocksStored)) {
+                // Halted, the piece is downloaded again next time.
+                synchronized (picker) {
+                    picker.setWanted(piece, true);
                 }
-            } catch (IOException ioe) {
-                Snark.abort("Error writing storage", ioe);
+                BufferPool.getPool().release(bs);
+            }
+        } catch (InterruptedException ie) {
+            synchronized (picker) {
+                picker.setWanted(piece, true);
+            }
+            BufferPool.getPool().release(bs);
+            throw new InterruptedIOException("Interrupted while queueing piece "
+                + piece);
+        }
+        return true;
+    }
+
+    public BitField startPiece (Peer peer, int piece, byte[] bs)
+    {
+        Integer p = new Integer(piece);
+        synchronized (picker) {
+            // Every started download ends in gotPiece() or abandonPiece().
+            picker.started(piece);
+            if (halted || !picker.isWanted(piece)
+                || blockOwners.containsKey(p)) {
+                return null;
             }
-            wantedPieces.remove(p);
+            blockOwners.put(p, bs);
         }
 
+        // Continue where an earlier download of the piece stopped, unless
+        // its blocks are still going to be forgotten.
+        if (writer.isDiscardPending(piece)) {
+            return new BitField(storage.getBlockCount(piece));
+        }
+        try {
+            BitField blocks = storage.readBlocks(piece, bs);
+            if (blocks != null) {
+                log.log(Level.FINER, "Resume p" + piece + " " + peer);
+                return blocks;
+            }
+        } catch (IOException ioe) {
+            log.log(Level.WARNING, "Couldn't read stored blocks of piece "
+                + piece, ioe);
+        }
+        return new BitField(storage.getBlockCount(piece));
+    }
+
+    public byte[] sharePiece (Peer peer, int piece)
+    {
+        synchronized (picker) {
+            if (halted || endgameStart == 0 || !picker.isWanted(piece)) {
+                return null;
+            }
+            return blockOwners.get(new Integer(piece));
+        }
+    }
+
+    public void gotBlock (Peer peer, int piece, int begin, byte[] bs,
+        int length) throws IOException
+    {
+        boolean owner;
+        synchronized (picker) {
+            if (halted) {
+                return;
+            }
+            owner = blockOwners.get(new Integer(piece)) == bs;
+        }
+        if (!owner) {
+            return;
+        }
+
+        // Other peers that were asked for the block in the endgame don't
+        // have to send it anymore.
+        PartialPiece partial = PartialPiece.get(bs);
+        if (partial != null) {
+            for (Peer p : partial.requesters(begin, peer)) {
+                p.cancel(piece, begin, length);
+            }
+        }
+
+        // The piece array is still being received into, so write a copy.
+        byte[] block = BufferPool.getPool().acquire(length);
+        System.arraycopy(bs, begin, block, 0, length);
+        try {
+            if (!writer.writeBlock(piece, begin, block, length)) {
+                // Halted.
+                BufferPool.getPool().release(block);
+            }
+        } catch (InterruptedException ie) {
+            BufferPool.getPool().release(block);
+            throw new InterruptedIOException("Interrupted while queueing block "
+                + begin + " of piece " + piece);
+        }
+    }
+
+    public void abandonPiece (Peer peer, int piece, byte[] bs)
+    {
+        Integer p = new Integer(piece);
+        synchronized (picker) {
+            picker.stopped(piece);
+            if (blockOwners.get(p) == bs) {
+                blockOwners.remove(p);
+            }
+        }
+    }
+
+    /**
+     * Called by the DiskWriter when a piece has been written.
+     */
+    private void pieceWritten (int piece)
+    {
         // Announce to the world we have it!
         synchronized (peers) {
             Iterator it = peers.iterator();
@@ -444,9 +800,14 @@ public class PeerCoordinator implements PeerListener
         }
 
         if (completed()) {
-            client.interrupt();
+            long time = getEndgameTime();
+            if (time > 0) {
+                log.log(Level.INFO, "Endgame took " + time + " ms");
+            }
+            if (client != null) {
+                client.interrupt();
+            }
         }
-        return true;
     }
 
     public void gotChoke (Peer peer, boolean choke)
@@ -480,6 +841,18 @@ public class PeerCoordinator implements PeerListener
     public void disconnected (Peer peer)
     {
         log.log(Level.FINER, "Disconnected " + peer);
+        readAhead.disconnected(peer);
+
+        // Its pieces are now a bit rarer.
+        synchronized (picker) {
+            BitField counted = peerPieces.remove(peer);
+            if (counted != null) {
+                for (int i = counted.nextSetBit(0); i != -1; i = counted
+                    .nextSetBit(i + 1)) {
+                    picker.peerLost(i);
+                }
+            }
+        }
 
         synchronized (peers) {
             // Make sure it is no longer in our lists
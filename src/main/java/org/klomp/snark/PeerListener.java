@@ -100,7 +100,8 @@ public interface PeerListener
      * Called when a piece is received from the peer. The piece must be
      * requested by Peer.request() first. If this method returns false that
      * means the Peer provided a corrupted piece and the connection will be
-     * closed.
+     * closed. The byte array comes from the BufferPool, the listener is
+     * responsible for releasing it when it is no longer needed.
      * 
      * @param peer
      *            the Peer that got the piece.
@@ -108,26 +109,125 @@ public interface PeerListener
      *            the piece number received.
      * @param bs
      *            the byte array containing the piece.
+     * @param hash
+     *            the SHA1 hash of the bytes in bs.
      * 
      * @return true when the bytes represent the piece, false otherwise.
      * @throws IOException 
      */
-    boolean gotPiece (Peer peer, int piece, byte[] bs) throws IOException;
+    boolean gotPiece (Peer peer, int piece, byte[] bs, byte[] hash)
+        throws IOException;
 
     /**
-     * Called when the peer wants (part of) a piece from us. Only called when
+     * Called when we start downloading a piece from the peer into bs. Blocks
+     * of the piece that were stored before are read into bs.
+     * 
+     * @param peer
+     *            the Peer that will provide the piece.
+     * @param piece
+     *            the piece number.
+     * @param bs
+     *            the byte array the piece will be received in.
+     * 
+     * @return the blocks of the piece that are already in bs and should not
+     *         be requested, or null when the blocks received into bs will
+     *         not be stored before the piece is complete.
+     */
+    BitField startPiece (Peer peer, int piece, byte[] bs);
+
+    /**
+     * Called before <code>startPiece()</code> to find out whether the piece
+     * is already being downloaded from other peers and should be downloaded
+     * into the same byte array. This happens in the endgame, when all
+     * remaining pieces are being downloaded. The blocks received from any of
+     * the peers are then used, <code>gotPiece()</code> is called once by the
+     * peer that received the last block and <code>abandonPiece()</code> only
+     * when the last peer stops without completing the piece.
+     * 
+     * @param peer
+     *            the Peer that will also provide the piece.
+     * @param piece
+     *            the piece number.
+     * 
+     * @return the byte array the piece is being received in, or null when
+     *         the piece should be started with <code>startPiece()</code>.
+     */
+    byte[] sharePiece (Peer peer, int piece);
+
+    /**
+     * Called when a block of a piece has been received from the peer, before
+     * <code>gotPiece()</code> is called for the complete piece. In the
+     * endgame requests for the same block to other peers are cancelled.
+     * 
+     * @param peer
+     *            the Peer that provided the block.
+     * @param piece
+     *            the piece number.
+     * @param begin
+     *            the offset of the block in the piece.
+     * @param bs
+     *            the byte array the piece is received in, the block starts at
+     *            begin.
+     * @param length
+     *            the length of the block.
+     */
+    void gotBlock (Peer peer, int piece, int begin, byte[] bs, int length)
+        throws IOException;
+
+    /**
+     * Called when we stop downloading a piece from the peer before it was
+     * complete.
+     * 
+     * @param peer
+     *            the Peer that was providing the piece.
+     * @param piece
+     *            the piece number.
+     * @param bs
+     *            the byte array the piece was received in.
+     */
+    void abandonPiece (Peer peer, int piece, byte[] bs);
+
+    /**
+     * Called when the peer wants a block of a piece from us. Only called when
      * the peer is not choked by us (<code>peer.choke(false)</code> was
      * called).
      * 
      * @param peer
-     *            the Peer that wants the piece.
+     *            the Peer that wants the block.
+     * @param piece
+     *            the piece number requested.
+     * @param begin
+     *            the offset of the block in the piece.
+     * @param length
+     *            the length of the block.
+     * 
+     * @return a byte array of length bytes containing the block or null when
+     *         the piece is not available (which is a protocol error). The
+     *         array comes from the BufferPool and is given back once it has
+     *         been send or dropped.
+     */
+    byte[] gotRequest (Peer peer, int piece, int begin, int length)
+        throws IOException;
+
+    /**
+     * Called before <code>gotRequest()</code> to see whether the block can
+     * be send straight from the files of the torrent to the peer.
+     * 
+     * @param peer
+     *            the Peer that wants the block.
      * @param piece
      *            the piece number requested.
+     * @param begin
+     *            the offset of the block in the piece.
+     * @param length
+     *            the length of the block.
      * 
-     * @return a byte array containing the piece or null when the piece is not
-     *         available (which is a protocol error).
+     * @return the regions of the files that make up the block or null when
+     *         the block should be send from a byte array gotten through
+     *         <code>gotRequest()</code>.
      */
-    byte[] gotRequest (Peer peer, int piece) throws IOException;
+    FileRegion[] gotRegionRequest (Peer peer, int piece, int begin,
+        int length) throws IOException;
 
     /**
      * Called when a (partial) piece has been downloaded from the peer.
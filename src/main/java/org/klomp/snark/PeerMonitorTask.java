@@ -121,6 +121,19 @@ public class PeerMonitorTask extends TimerTask
         log.log(Level.INFO, peers + ": Download #" + downloaders + " Upload #"
             + uploaders + " Interested #" + interested + " Interesting #"
             + interesting + " Choking #" + choking + " Choked #" + choked);
+        PieceCache cache = coordinator.storage.getPieceCache();
+        if (cache != null) {
+            log.log(Level.FINE, cache.toString());
+        }
+        FileHandleCache handles = coordinator.storage.getFileHandleCache();
+        if (handles != null) {
+            log.log(Level.FINE, handles.toString());
+        }
+        IOScheduler scheduler = coordinator.storage.getIOScheduler();
+        if (scheduler != null) {
+            log.log(Level.FINE, scheduler.toString());
+        }
+        log.log(Level.FINE, BufferPool.getPool().toString());
         lastDownloaded = downloaded;
         lastUploaded = uploaded;
     }
@@ -64,12 +64,26 @@ class PeerState
 
     private Request lastRequest = null;
 
-    // If we have te resend outstanding requests (true after we got choked).
+    // The request whose block is being read, it has been claimed in its
+    // PartialPiece.
+    private Request reading;
+
+    // Requests that were cancelled, their blocks may still arrive.
+    private final List<Request> cancelled = new ArrayList<Request>();
+
+    // Pieces whose requests were dropped, their buffers are released by the
+    // incoming connection once it is sure it isn't reading into them.
+    private final List<PartialPiece> abandoned = new ArrayList<PartialPiece>();
+
+    // If we have te resend outstanding requests (true after we got choked or
+    // when requests were added while choked).
     private boolean resend = false;
 
     private final static int MAX_PIPELINE = 5;
 
-    private final static int PARTSIZE = 16384; // 16K
+    private final static int MAX_CANCELLED = 4 * MAX_PIPELINE;
+
+    private final static int PARTSIZE = Storage.BLOCK_SIZE; // 16K
 
     PeerState (Peer peer, PeerListener listener, MetaInfo metainfo,
         PeerConnectionIn in, PeerConnectionOut out)
@@ -94,9 +108,17 @@ class PeerState
     {
         log.log(Level.FINEST, peer + " rcv " + (choke ? "" : "un") + "choked");
 
-        choked = choke;
-        if (choked) {
-            resend = true;
+        synchronized (this) {
+            choked = choke;
+            if (choked) {
+                resend = true;
+
+                // The other side drops the requests, other peers may be
+                // asked for the blocks in the meantime.
+                for (Request req : outstandingRequests) {
+                    req.partial.unrequested(req.off, peer);
+                }
+            }
         }
 
         listener.gotChoke(peer, choke);
@@ -141,6 +163,7 @@ class PeerState
 
     void bitfieldMessage (byte[] bitmap)
     {
+        BitField snapshot;
         synchronized (this) {
             log.log(Level.FINEST, peer + " rcv bitfield");
             if (bitfield != null) {
@@ -152,8 +175,9 @@ class PeerState
 
             // XXX - Check for weird bitfield and disconnect?
             bitfield = new BitField(bitmap, metainfo.getPieces());
+            snapshot = bitfield.snapshot();
         }
-        setInteresting(listener.gotBitField(peer, bitfield));
+        setInteresting(listener.gotBitField(peer, snapshot));
     }
 
     void requestMessage (int piece, int begin, int length)
@@ -176,27 +200,38 @@ class PeerState
             return;
         }
 
-        byte[] pieceBytes = listener.gotRequest(peer, piece);
-        if (pieceBytes == null) {
-            // XXX - Protocol error-> diconnect?
-            log.log(Level.FINER, "Got request for unknown piece: " + piece);
-            return;
-        }
-
         // More sanity checks
-        if (begin >= pieceBytes.length || begin + length > pieceBytes.length) {
+        int pieceLength = metainfo.getPieceLength(piece);
+        if (begin >= pieceLength || begin + length > pieceLength) {
             // XXX - Protocol error-> disconnect?
             log.log(Level.FINER, "Got out of range 'request: " + piece + ", "
                 + begin + ", " + length + "' message from " + peer);
             return;
         }
 
-        log.log(Level.FINEST, "Sending (" + piece + ", " + begin + ", "
-            + length + ")" + " to " + peer);
-        out.sendPiece(piece, begin, length, pieceBytes);
+        FileRegion[] regions = listener.gotRegionRequest(peer, piece, begin,
+            length);
+        if (regions != null) {
+            log.log(Level.FINEST, "Sending (" + piece + ", " + begin + ", "
+                + length + ")" + " from file to " + peer);
+            out.sendPiece(piece, begin, length, regions);
+        } else {
+            byte[] blockBytes = listener.gotRequest(peer, piece, begin,
+                length);
+            if (blockBytes == null) {
+                // XXX - Protocol error-> diconnect?
+                log.log(Level.FINER, "Got request for unknown piece: "
+                    + piece);
+                return;
+            }
+
+            log.log(Level.FINEST, "Sending (" + piece + ", " + begin + ", "
+                + length + ")" + " to " + peer);
+            out.sendPiece(piece, begin, length, blockBytes);
+        }
 
         // Tell about last subpiece delivery.
-        if (begin + length == pieceBytes.length) {
+        if (begin + length == pieceLength) {
             log.log(Level.FINEST, "Send p" + piece + " " + peer);
         }
     }
@@ -221,9 +256,22 @@ class PeerState
         downloaded += size;
         listener.downloaded(peer, size);
 
+        // Store the block so it survives a restart and feed it to the
+        // running digest of the piece.
+        PartialPiece partial = req.partial;
+        listener.gotBlock(peer, req.piece, req.off, req.bs, req.len);
+        partial.received(req.off, req.len);
+        synchronized (this) {
+            reading = null;
+        }
+
         // Last chunk needed for this piece?
-        if (getFirstOutstandingRequest(req.piece) == -1) {
-            if (listener.gotPiece(peer, req.piece, req.bs)) {
+        if (partial.isComplete() && partial.handOff()) {
+            // Requests for the piece left over from the endgame are no
+            // longer needed.
+            cancelPiece(req.piece);
+            byte[] hash = partial.getHash();
+            if (listener.gotPiece(peer, req.piece, req.bs, hash)) {
                 log.log(Level.FINEST, "Got " + req.piece + ": " + peer);
             } else {
                 log.log(Level.FINEST, "Got BAD " + req.piece + " from " + peer);
@@ -253,10 +301,16 @@ class PeerState
         log.log(Level.FINEST, "getChunk(" + piece + "," + begin + "," + length
             + ") " + peer);
 
+        // Nothing is being read now, so abandoned buffers can go.
+        releaseAbandoned();
+
         int r = getFirstOutstandingRequest(piece);
 
         // Unrequested piece number?
         if (r == -1) {
+            if (wasCancelled(piece, begin, length)) {
+                return null;
+            }
             log.log(Level.FINER, "Unrequested 'piece: " + piece + ", " + begin
                 + ", " + length + "' received from " + peer);
             downloaded = 0; // XXX - punishment?
@@ -275,6 +329,9 @@ class PeerState
 
             // Something wrong?
             if (req.piece != piece || req.off != begin || req.len != length) {
+                if (wasCancelled(piece, begin, length)) {
+                    return null;
+                }
                 log.log(Level.FINER, "Unrequested or unneeded 'piece: " + piece
                     + ", " + begin + ", " + length + "' received from " + peer);
                 downloaded = 0; // XXX - punishment?
@@ -301,6 +358,14 @@ class PeerState
                 log.log(Level.FINER, errmsg);
             }
             outstandingRequests.remove(0);
+
+            // In the endgame another peer may have delivered the block
+            // already or be reading it right now.
+            if (!req.partial.claim(req.off)) {
+                log.log(Level.FINEST, "Already have " + req + " " + peer);
+                req = null;
+            }
+            reading = req;
         }
 
         // Request more if necessary to keep the pipeline filled.
@@ -327,25 +392,9 @@ class PeerState
     {
         log.log(Level.FINEST, "Tell " + peer + " havePiece(" + piece + ")");
 
-        synchronized (this) {
-            // Tell the other side that we are no longer interested in any of
-            // the outstanding requests for this piece.
-            if (lastRequest != null && lastRequest.piece == piece) {
-                lastRequest = null;
-            }
-
-            Iterator it = outstandingRequests.iterator();
-            while (it.hasNext()) {
-                Request req = (Request)it.next();
-                if (req.piece == piece) {
-                    it.remove();
-                    // Send cancel even when we are choked to make sure that it
-                    // is
-                    // really never ever send.
-                    out.sendCancel(req);
-                }
-            }
-        }
+        // Tell the other side that we are no longer interested in any of
+        // the outstanding requests for this piece.
+        cancelPiece(piece);
 
         // Tell the other side that we really have this piece.
         out.sendHave(piece);
@@ -361,13 +410,138 @@ class PeerState
         }
     }
 
+    // Drops and cancels all requests for the given piece and abandons it.
+    synchronized private void cancelPiece (int piece)
+    {
+        if (lastRequest != null && lastRequest.piece == piece) {
+            abandon(lastRequest.partial);
+            lastRequest = null;
+        }
+
+        Iterator<Request> it = outstandingRequests.iterator();
+        while (it.hasNext()) {
+            Request req = it.next();
+            if (req.piece == piece) {
+                it.remove();
+                abandon(req.partial);
+                // Send cancel even when we are choked to make sure that it
+                // is really never ever send.
+                out.sendCancel(req);
+                addCancelled(req);
+            }
+        }
+    }
+
+    /**
+     * Cancels the request for the given block, when there is one. Called in
+     * the endgame when the block has been received from another peer.
+     */
+    synchronized void cancelRequest (int piece, int begin, int length)
+    {
+        Iterator<Request> it = outstandingRequests.iterator();
+        while (it.hasNext()) {
+            Request req = it.next();
+            if (req.piece == piece && req.off == begin && req.len == length) {
+                it.remove();
+                out.sendCancel(req);
+                addCancelled(req);
+                log.log(Level.FINEST, "Cancel " + req + " " + peer);
+            }
+        }
+    }
+
+    // Remembers a cancelled request. Only the last ones are kept, blocks
+    // cancelled long ago are not going to arrive anymore.
+    synchronized private void addCancelled (Request req)
+    {
+        if (cancelled.size() == MAX_CANCELLED) {
+            cancelled.remove(0);
+        }
+        cancelled.add(req);
+    }
+
+    // Returns true when the given block was cancelled, it is then no
+    // longer expected.
+    synchronized private boolean wasCancelled (int piece, int begin,
+        int length)
+    {
+        Iterator<Request> it = cancelled.iterator();
+        while (it.hasNext()) {
+            Request req = it.next();
+            if (req.piece == piece && req.off == begin && req.len == length) {
+                it.remove();
+                log.log(Level.FINEST, "Cancelled " + req + " received from "
+                    + peer);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Remembers that the buffer of the given piece can be released.
+    synchronized private void abandon (PartialPiece partial)
+    {
+        if (!abandoned.contains(partial)) {
+            abandoned.add(partial);
+        }
+    }
+
+    // Releases the buffers of abandoned pieces. Only called from the
+    // incoming connection thread while it isn't reading a block.
+    private void releaseAbandoned ()
+    {
+        List<PartialPiece> list;
+        synchronized (this) {
+            if (abandoned.isEmpty()) {
+                return;
+            }
+            list = new ArrayList<PartialPiece>(abandoned);
+            abandoned.clear();
+        }
+        for (PartialPiece partial : list) {
+            if (partial.leave(peer)) {
+                listener.abandonPiece(peer, partial.piece, partial.bs);
+            }
+            partial.release();
+        }
+    }
+
+    /**
+     * Releases the buffers of all pieces that were still being downloaded.
+     * Called by the incoming connection when it has stopped.
+     */
+    void releaseBuffers ()
+    {
+        synchronized (this) {
+            // The block being read when the connection stopped has to come
+            // from another peer.
+            if (reading != null) {
+                reading.partial.unclaim(reading.off);
+                abandon(reading.partial);
+                reading = null;
+            }
+            for (Request req : outstandingRequests) {
+                abandon(req.partial);
+            }
+            if (lastRequest != null) {
+                abandon(lastRequest.partial);
+            }
+        }
+        releaseAbandoned();
+    }
+
     // Starts or resumes requesting pieces.
     private void request ()
     {
         // Are there outstanding requests that have to be resend?
-        if (resend) {
-            out.sendRequests(outstandingRequests);
-            resend = false;
+        synchronized (this) {
+            if (resend) {
+                out.sendRequests(outstandingRequests);
+                for (Request req : outstandingRequests) {
+                    req.partial.requested(req.off, peer);
+                }
+                resend = false;
+            }
         }
 
         // Add/Send some more requests if necessary.
@@ -391,36 +565,50 @@ class PeerState
             } else if (more_pieces) // We want something
             {
                 int pieceLength;
-                boolean isLastChunk;
+                int nextBegin;
                 synchronized (this) {
                     pieceLength = metainfo.getPieceLength(lastRequest.piece);
-                    isLastChunk = lastRequest.off + lastRequest.len == pieceLength;
+                    nextBegin = lastRequest.partial.nextMissing(lastRequest.off
+                        + PARTSIZE);
                 }
 
-                // Last part of a piece?
-                if (isLastChunk) {
+                // Last missing part of a piece?
+                if (nextBegin == -1) {
                     more_pieces = requestNextPiece();
                 } else {
                     synchronized (this) {
-                        int nextPiece = lastRequest.piece;
-                        int nextBegin = lastRequest.off + PARTSIZE;
-                        byte[] bs = lastRequest.bs;
+                        PartialPiece partial = lastRequest.partial;
                         int maxLength = pieceLength - nextBegin;
                         int nextLength = maxLength > PARTSIZE ? PARTSIZE
                             : maxLength;
-                        Request req = new Request(nextPiece, bs, nextBegin,
-                            nextLength);
-                        outstandingRequests.add(req);
-                        if (!choked) {
-                            out.sendRequest(req);
-                        }
-                        lastRequest = req;
+                        queueRequest(new Request(partial, nextBegin,
+                            nextLength));
                     }
                 }
             }
         }
 
-        log.log(Level.FINEST, peer + " requests " + outstandingRequests);
+        // The requests are changed by other threads too, only turn them into
+        // a string when logging and while holding the lock.
+        if (log.isLoggable(Level.FINEST)) {
+            synchronized (this) {
+                log.log(Level.FINEST, peer + " requests " + outstandingRequests);
+            }
+        }
+    }
+
+    // Adds the request to the outstanding requests and sends it, or sends
+    // it later when choked.
+    synchronized private void queueRequest (Request req)
+    {
+        outstandingRequests.add(req);
+        if (!choked) {
+            out.sendRequest(req);
+            req.partial.requested(req.off, peer);
+        } else {
+            resend = true;
+        }
+        lastRequest = req;
     }
 
     // Starts requesting first chunk of next piece. Returns true if
@@ -428,22 +616,60 @@ class PeerState
     private boolean requestNextPiece ()
     {
         // Check that we already know what the other side has.
-        if (bitfield != null) {
-            int nextPiece = listener.wantPiece(peer, bitfield);
+        BitField have = getBitField();
+        if (have != null) {
+            // Don't pick a piece we are requesting already.
+            synchronized (this) {
+                if (lastRequest != null || !outstandingRequests.isEmpty()) {
+                    have = new BitField(have);
+                    if (lastRequest != null) {
+                        have.clear(lastRequest.piece);
+                    }
+                    for (Request req : outstandingRequests) {
+                        have.clear(req.piece);
+                    }
+                }
+            }
+
+            int nextPiece = listener.wantPiece(peer, have);
             log.log(Level.FINEST, peer + " want piece " + nextPiece);
             synchronized (this) {
                 if (nextPiece != -1
                     && (lastRequest == null || lastRequest.piece != nextPiece)) {
                     int piece_length = metainfo.getPieceLength(nextPiece);
-                    byte[] bs = new byte[piece_length];
-
-                    int length = Math.min(piece_length, PARTSIZE);
-                    Request req = new Request(nextPiece, bs, 0, length);
-                    outstandingRequests.add(req);
-                    if (!choked) {
-                        out.sendRequest(req);
+                    int begin;
+
+                    // In the endgame join the peers that are downloading the
+                    // piece already.
+                    PartialPiece partial = null;
+                    byte[] shared = listener.sharePiece(peer, nextPiece);
+                    if (shared != null) {
+                        partial = PartialPiece.share(shared, nextPiece, peer);
+                    }
+                    if (partial != null) {
+                        log.log(Level.FINER, "Endgame p" + nextPiece + " "
+                            + peer);
+                        begin = partial.nextMissing(0);
+                        if (begin == -1) {
+                            // All blocks are in or on their way.
+                            abandon(partial);
+                            return false;
+                        }
+                    } else {
+                        partial = new PartialPiece(peer, nextPiece,
+                            piece_length);
+
+                        // Only ask for the blocks that weren't stored before.
+                        BitField stored = listener.startPiece(peer, nextPiece,
+                            partial.bs);
+                        if (stored != null) {
+                            partial.storedBlocks(stored);
+                        }
+                        begin = partial.nextMissing(0);
                     }
-                    lastRequest = req;
+
+                    int length = Math.min(piece_length - begin, PARTSIZE);
+                    queueRequest(new Request(partial, begin, length));
                     return true;
                 }
             }
@@ -452,6 +678,15 @@ class PeerState
         return false;
     }
 
+    /**
+     * Returns a snapshot of the pieces the peer has, or null when not known
+     * yet.
+     */
+    synchronized BitField getBitField ()
+    {
+        return (bitfield != null) ? bitfield.snapshot() : null;
+    }
+
     synchronized void setInteresting (boolean interest)
     {
         log.log(Level.FINEST, peer + " setInteresting(" + interest + ")");
@@ -0,0 +1,219 @@
+/*
+ * PieceCache - Keeps recently used pieces in memory.
+ *
+ * This file is part of Snark.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.klomp.snark;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache of complete pieces, bounded by the total number
+ * of bytes. Pieces are only softly referenced so the garbage collector can
+ * drop them when memory gets tight. The cached arrays are shared between all
+ * readers and must never be changed.
+ */
+public class PieceCache
+{
+    private final long maxSize;
+
+    // Access ordered, so the eldest entry is the least recently used.
+    private final LinkedHashMap<Integer, Entry> pieces = new LinkedHashMap<Integer, Entry>(
+        16, 0.75f, true);
+
+    // Entries cleared by the garbage collector end up here.
+    private final ReferenceQueue<byte[]> cleared = new ReferenceQueue<byte[]>();
+
+    // How often recently looked up pieces were not found, the eldest are
+    // forgotten when there are more than MAX_MISSED.
+    private final LinkedHashMap<Integer, Integer> missed = new LinkedHashMap<Integer, Integer>(
+        16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry (Map.Entry<Integer, Integer> eldest)
+        {
+            return size() > MAX_MISSED;
+        }
+    };
+
+    private long size;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    /**
+     * Creates a new PieceCache that holds at most maxSize bytes.
+     */
+    public PieceCache (long maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the cached piece or null if it isn't in the cache.
+     */
+    synchronized byte[] get (int piece)
+    {
+        expunge();
+        Entry entry = pieces.get(piece);
+        byte[] bs = (entry == null) ? null : entry.get();
+        if (bs == null) {
+            misses++;
+            Integer count = missed.get(piece);
+            missed.put(piece, count == null ? 1 : count.intValue() + 1);
+            return null;
+        }
+        hits++;
+        return bs;
+    }
+
+    /**
+     * Returns how often the piece was looked up without being found since it
+     * was last added to the cache. Only recent misses are remembered.
+     */
+    synchronized int getMisses (int piece)
+    {
+        Integer count = missed.get(piece);
+        return (count == null) ? 0 : count.intValue();
+    }
+
+    /**
+     * Returns whether the piece is in the cache. Doesn't count as a hit or
+     * miss and doesn't change the order of the cache.
+     */
+    synchronized boolean contains (int piece)
+    {
+        Entry entry = pieces.get(piece);
+        return entry != null && entry.get() != null;
+    }
+
+    /**
+     * Adds a piece to the cache, evicting the least recently used pieces if
+     * the cache gets too big. The array should not be changed afterwards.
+     */
+    synchronized void put (int piece, byte[] bs)
+    {
+        if (bs.length > maxSize) {
+            return;
+        }
+
+        expunge();
+        missed.remove(piece);
+        Entry old = pieces.put(piece, new Entry(piece, bs, cleared));
+        if (old != null) {
+            size -= old.length;
+        }
+        size += bs.length;
+
+        Iterator<Entry> it = pieces.values().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Entry eldest = it.next();
+            it.remove();
+            size -= eldest.length;
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes all entries that have been cleared by the garbage collector.
+     */
+    private void expunge ()
+    {
+        Entry entry;
+        while ((entry = (Entry)cleared.poll()) != null) {
+            // Might have been evicted or replaced already.
+            if (pieces.get(entry.piece) == entry) {
+                pieces.remove(entry.piece);
+                size -= entry.length;
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * Returns the maximum number of bytes held by this cache.
+     */
+    public long getMaxSize ()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of bytes currently held by this cache.
+     */
+    public synchronized long getSize ()
+    {
+        expunge();
+        return size;
+    }
+
+    /**
+     * Returns the number of lookups that found their piece.
+     */
+    public synchronized long getHits ()
+    {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that didn't find their piece.
+     */
+    public synchronized long getMisses ()
+    {
+        return misses;
+    }
+
+    /**
+     * Returns the number of pieces removed to make room or because memory
+     * ran low.
+     */
+    public synchronized long getEvictions ()
+    {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString ()
+    {
+        return "PieceCache[size=" + size / 1024 + "KB, max=" + maxSize / 1024
+            + "KB, hits=" + hits + ", misses=" + misses + ", evictions="
+            + evictions + "]";
+    }
+
+    // Number of pieces of which the misses are remembered.
+    private static final int MAX_MISSED = 1024;
+
+    private static class Entry extends SoftReference<byte[]>
+    {
+        final int piece;
+
+        final int length;
+
+        Entry (int piece, byte[] bs, ReferenceQueue<byte[]> queue)
+        {
+            super(bs, queue);
+            this.piece = piece;
+            this.length = bs.length;
+        }
+    }
+}
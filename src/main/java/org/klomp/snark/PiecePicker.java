@@ -0,0 +1,477 @@
+/*
+ * PiecePicker - Chooses which piece to download from a peer.
+ *
+ * This file is part of Snark.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.klomp.snark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Chooses which piece to download from a peer. Keeps the number of peers
+ * that have each piece and the wanted pieces in buckets by priority and
+ * availability, so the rarest wanted piece of the highest priority is found
+ * without going through all pieces. Pieces being downloaded are kept in
+ * separate buckets so they are never scanned for nothing. Within a bucket the
+ * search starts at a random place so peers don't all go for the same piece.
+ * When a peer has fewer pieces than there are candidates its own pieces are
+ * searched instead. The first few
+ * pieces are picked at random instead, a rare piece would take longer to get
+ * and until then there is nothing to trade with. Pieces that nobody is
+ * downloading yet are preferred, pieces being downloaded are only handed out
+ * in the endgame, which the PeerCoordinator starts once every block of the
+ * pieces being downloaded has been requested.
+ *
+ * Not thread safe, the PeerCoordinator synchronizes on the picker.
+ */
+class PiecePicker
+{
+    // How many pieces are picked at random before going rarest first.
+    static final int RANDOM_FIRST = 4;
+
+    // States of wanted pieces, see state().
+    private static final int IDLE = 1;
+
+    private static final int BUSY = 2;
+
+    private final int pieces;
+
+    // Number of peers having each piece.
+    private final int[] availability;
+
+    // The priority of each piece, see Storage.getPiecePriority().
+    private final int[] priorities;
+
+    private final BitField wanted;
+
+    // Number of downloads of each piece, peers sharing a download in the
+    // endgame count once.
+    private final int[] downloaders;
+
+    // The wanted pieces nobody is downloading and the wanted pieces being
+    // downloaded by priority and availability, and the index of each wanted
+    // piece in its bucket.
+    private final List<List<Bucket>> idleBuckets = new ArrayList<List<Bucket>>();
+
+    private final List<List<Bucket>> busyBuckets = new ArrayList<List<Bucket>>();
+
+    private final int[] index;
+
+    // Number of pieces we have.
+    private int got;
+
+    // Number of wanted pieces that some peer has and nobody is downloading,
+    // and number of wanted pieces that are being downloaded.
+    private int idle;
+
+    private int busy;
+
+    // Whether pieces being downloaded are handed out too.
+    private boolean endgame;
+
+    // How many pieces from the stream cursor are picked first, 0 when not
+    // streaming.
+    private int streamWindow;
+
+    private final Random random = new Random();
+
+    /**
+     * Creates a picker for the given number of pieces. No piece is wanted
+     * and all have PRIORITY_NORMAL until told otherwise.
+     */
+    PiecePicker (int pieces, int got)
+    {
+        this.pieces = pieces;
+        this.got = got;
+        availability = new int[pieces];
+        priorities = new int[pieces];
+        wanted = new BitField(pieces);
+        downloaders = new int[pieces];
+        index = new int[pieces];
+        for (int i = 0; i < pieces; i++) {
+            priorities[i] = Storage.PRIORITY_NORMAL;
+        }
+        for (int p = 0; p <= Storage.PRIORITY_HIGH; p++) {
+            idleBuckets.add(new ArrayList<Bucket>());
+            busyBuckets.add(new ArrayList<Bucket>());
+        }
+    }
+
+    /**
+     * Returns the piece to download from a peer having the given pieces, or
+     * -1 when the peer has nothing we want. The stream cursor is the piece a
+     * StorageInputStream is reading, or -1 when there is none.
+     */
+    int pick (BitField have, int cursor)
+    {
+        int piece = -1;
+        if (streamWindow > 0) {
+            piece = pickStreamed(have, Math.max(cursor, 0));
+        }
+        if (piece == -1 && got < RANDOM_FIRST) {
+            piece = pickRandom(have);
+        }
+        if (piece == -1) {
+            piece = pickRarest(have, false);
+        }
+        if (piece == -1 && endgame) {
+            piece = pickRarest(have, true);
+        }
+        return piece;
+    }
+
+    // The first piece nobody is downloading within the stream window, which
+    // starts at the first wanted piece from the cursor.
+    private int pickStreamed (BitField have, int cursor)
+    {
+        int first = wanted.nextSetBit(Math.min(cursor, pieces));
+        if (first == -1) {
+            return -1;
+        }
+        int end = Math.min(first + streamWindow, pieces);
+        for (int i = first; i != -1 && i < end; i = wanted.nextSetBit(i + 1)) {
+            if (downloaders[i] == 0 && have.get(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // A random wanted piece, found by going through the wanted pieces from
+    // a random place on.
+    private int pickRandom (BitField have)
+    {
+        int start = random.nextInt(pieces);
+        for (int i = wanted.nextSetBit(start); i != -1; i = wanted
+            .nextSetBit(i + 1)) {
+            if (downloaders[i] == 0 && have.get(i)) {
+                return i;
+            }
+        }
+        for (int i = wanted.nextSetBit(0); i != -1 && i < start; i = wanted
+            .nextSetBit(i + 1)) {
+            if (downloaders[i] == 0 && have.get(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // The rarest wanted piece of the highest priority that the peer has,
+    // out of the pieces nobody is downloading or, when busy is true, the
+    // pieces being downloaded.
+    private int pickRarest (BitField have, boolean busy)
+    {
+        int candidates = busy ? this.busy : idle;
+        if (candidates == 0) {
+            return -1;
+        }
+        if (have.cardinality() < candidates) {
+            return pickFromPeer(have, busy);
+        }
+
+        List<List<Bucket>> buckets = busy ? busyBuckets : idleBuckets;
+        for (int p = Storage.PRIORITY_HIGH; p > Storage.PRIORITY_SKIP; p--) {
+            List<Bucket> byAvailability = buckets.get(p);
+            // Pieces nobody has can't be picked.
+            for (int a = 1; a < byAvailability.size(); a++) {
+                Bucket b = byAvailability.get(a);
+                if (b.size == 0) {
+                    continue;
+                }
+                int start = random.nextInt(b.size);
+                for (int k = 0; k < b.size; k++) {
+                    int i = b.pieces[(start + k) % b.size];
+                    if (have.get(i)) {
+                        return i;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    // Like pickRarest() but goes through the pieces of the peer, from a
+    // random place on, which is quicker when the peer has only a few.
+    private int pickFromPeer (BitField have, boolean busy)
+    {
+        int best = -1;
+        int start = random.nextInt(pieces);
+        for (int i = have.nextSetBit(start); i != -1; i = have
+            .nextSetBit(i + 1)) {
+            best = better(i, best, busy);
+        }
+        for (int i = have.nextSetBit(0); i != -1 && i < start; i = have
+            .nextSetBit(i + 1)) {
+            best = better(i, best, busy);
+        }
+        return best;
+    }
+
+    // Returns piece when it can be picked and has a higher priority or the
+    // same priority and a lower availability than best, otherwise best.
+    private int better (int piece, int best, boolean busy)
+    {
+        if (!wanted.get(piece) || (downloaders[piece] > 0) != busy
+            || priorities[piece] == Storage.PRIORITY_SKIP) {
+            return best;
+        }
+        if (best == -1 || priorities[piece] > priorities[best]
+            || (priorities[piece] == priorities[best]
+                && availability[piece] < availability[best])) {
+            return piece;
+        }
+        return best;
+    }
+
+    /**
+     * Returns true when some and all wanted pieces that a peer has are being
+     * downloaded.
+     */
+    boolean allStarted ()
+    {
+        return idle == 0 && busy > 0;
+    }
+
+    /**
+     * Sets whether pieces being downloaded are handed out to other peers
+     * that have them too.
+     */
+    void setEndgame (boolean endgame)
+    {
+        this.endgame = endgame;
+    }
+
+    /**
+     * Sets whether the piece should be downloaded.
+     */
+    void setWanted (int piece, boolean want)
+    {
+        if (wanted.get(piece) != want) {
+            int was = state(piece);
+            if (want) {
+                wanted.set(piece);
+                add(piece);
+            } else {
+                wanted.clear(piece);
+                remove(piece);
+            }
+            updateState(piece, was);
+        }
+    }
+
+    boolean isWanted (int piece)
+    {
+        return wanted.get(piece);
+    }
+
+    /**
+     * Returns true when the peer having the given pieces has any piece we
+     * want.
+     */
+    boolean wantsAny (BitField have)
+    {
+        return wanted.intersects(have);
+    }
+
+    /**
+     * Called when a piece has been stored, it is no longer wanted.
+     */
+    void gotPiece (int piece)
+    {
+        setWanted(piece, false);
+        got++;
+    }
+
+    void setPriority (int piece, int priority)
+    {
+        if (wanted.get(piece)) {
+            remove(piece);
+            priorities[piece] = priority;
+            add(piece);
+        } else {
+            priorities[piece] = priority;
+        }
+    }
+
+    int getPriority (int piece)
+    {
+        return priorities[piece];
+    }
+
+    /**
+     * Called when a peer turns out to have a piece.
+     */
+    void peerHas (int piece)
+    {
+        int was = state(piece);
+        if (wanted.get(piece)) {
+            remove(piece);
+            availability[piece]++;
+            add(piece);
+        } else {
+            availability[piece]++;
+        }
+        updateState(piece, was);
+    }
+
+    /**
+     * Called when a peer that had the given piece is gone.
+     */
+    void peerLost (int piece)
+    {
+        if (availability[piece] == 0) {
+            return;
+        }
+        int was = state(piece);
+        if (wanted.get(piece)) {
+            remove(piece);
+            availability[piece]--;
+            add(piece);
+        } else {
+            availability[piece]--;
+        }
+        updateState(piece, was);
+    }
+
+    /**
+     * Returns the number of peers that have the piece.
+     */
+    int getAvailability (int piece)
+    {
+        return availability[piece];
+    }
+
+    /**
+     * Called when a download of a piece starts.
+     */
+    void started (int piece)
+    {
+        int was = state(piece);
+        if (downloaders[piece] == 0 && wanted.get(piece)) {
+            // Moves to the busy buckets.
+            remove(piece);
+            downloaders[piece]++;
+            add(piece);
+        } else {
+            downloaders[piece]++;
+        }
+        updateState(piece, was);
+    }
+
+    /**
+     * Called when a download of a piece has ended, whether the piece was
+     * complete or not.
+     */
+    void stopped (int piece)
+    {
+        if (downloaders[piece] > 0) {
+            int was = state(piece);
+            if (downloaders[piece] == 1 && wanted.get(piece)) {
+                // Moves back to the idle buckets.
+                remove(piece);
+                downloaders[piece]--;
+                add(piece);
+            } else {
+                downloaders[piece]--;
+            }
+            updateState(piece, was);
+        }
+    }
+
+    void setStreamWindow (int pieces)
+    {
+        streamWindow = pieces;
+    }
+
+    // Returns IDLE or BUSY for a wanted piece that is counted as such,
+    // otherwise 0.
+    private int state (int piece)
+    {
+        if (!wanted.get(piece)) {
+            return 0;
+        }
+        if (downloaders[piece] > 0) {
+            return BUSY;
+        }
+        return (availability[piece] > 0) ? IDLE : 0;
+    }
+
+    // Counts the piece again after a change, was is its state before.
+    private void updateState (int piece, int was)
+    {
+        int now = state(piece);
+        if (now != was) {
+            if (was == IDLE) {
+                idle--;
+            } else if (was == BUSY) {
+                busy--;
+            }
+            if (now == IDLE) {
+                idle++;
+            } else if (now == BUSY) {
+                busy++;
+            }
+        }
+    }
+
+    private Bucket bucket (int piece)
+    {
+        List<List<Bucket>> buckets = (downloaders[piece] > 0) ? busyBuckets
+            : idleBuckets;
+        List<Bucket> byAvailability = buckets.get(priorities[piece]);
+        int a = availability[piece];
+        while (byAvailability.size() <= a) {
+            byAvailability.add(new Bucket());
+        }
+        return byAvailability.get(a);
+    }
+
+    private void add (int piece)
+    {
+        Bucket b = bucket(piece);
+        if (b.size == b.pieces.length) {
+            int[] grown = new int[b.size * 2];
+            System.arraycopy(b.pieces, 0, grown, 0, b.size);
+            b.pieces = grown;
+        }
+        index[piece] = b.size;
+        b.pieces[b.size++] = piece;
+    }
+
+    private void remove (int piece)
+    {
+        // Move the last piece of the bucket into the hole.
+        Bucket b = bucket(piece);
+        int last = b.pieces[--b.size];
+        b.pieces[index[piece]] = last;
+        index[last] = index[piece];
+    }
+
+    /**
+     * The wanted pieces with the same priority and availability, in no
+     * particular order.
+     */
+    private static final class Bucket
+    {
+        int[] pieces = new int[16];
+
+        int size;
+    }
+}
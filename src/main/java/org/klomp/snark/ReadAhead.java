@@ -0,0 +1,177 @@
+/*
+ * ReadAhead - Prefetches pieces for peers that download sequentially.
+ *
+ * This file is part of Snark.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.klomp.snark;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the blocks requested by every peer and, when a peer asks for the
+ * block right after its previous one, reads the rest of the piece and the
+ * next piece into the piece cache from a background thread. Later requests
+ * of that peer are then served from memory. The number of bytes being
+ * prefetched at once is limited. Does nothing when the Storage has no piece
+ * cache.
+ */
+class ReadAhead
+{
+    private final Storage storage;
+
+    private final MetaInfo metainfo;
+
+    private final long maxPending;
+
+    // Where the last request of every peer ended, piece and offset.
+    private final Map<Peer, int[]> positions = new HashMap<Peer, int[]>();
+
+    // Pieces being prefetched, guarded by positions.
+    private final Set<Integer> pending = new HashSet<Integer>();
+
+    private long pendingBytes;
+
+    private final ExecutorService executor;
+
+    /**
+     * Creates a new ReadAhead that prefetches at most maxPending bytes at
+     * once.
+     */
+    ReadAhead (Storage storage, long maxPending)
+    {
+        this.storage = storage;
+        this.metainfo = storage.getMetaInfo();
+        this.maxPending = maxPending;
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread (Runnable r)
+            {
+                Thread t = new Thread(r, "ReadAhead");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Called for every block requested by the peer, before it is read.
+     */
+    void requested (Peer peer, int piece, int begin, int length)
+    {
+        if (storage.getPieceCache() == null) {
+            return;
+        }
+
+        boolean sequential;
+        synchronized (positions) {
+            int[] last = positions.get(peer);
+            if (last == null) {
+                last = new int[2];
+                positions.put(peer, last);
+                sequential = false;
+            } else {
+                sequential = (last[0] == piece && last[1] == begin)
+                    || (last[0] + 1 == piece && begin == 0 && last[1] == metainfo
+                        .getPieceLength(last[0]));
+            }
+            last[0] = piece;
+            last[1] = begin + length;
+        }
+
+        if (sequential) {
+            if (begin + length < metainfo.getPieceLength(piece)) {
+                prefetch(piece);
+            }
+            if (piece + 1 < metainfo.getPieces()) {
+                prefetch(piece + 1);
+            }
+        }
+    }
+
+    /**
+     * Forgets the position of a peer that went away.
+     */
+    void disconnected (Peer peer)
+    {
+        synchronized (positions) {
+            positions.remove(peer);
+        }
+    }
+
+    /**
+     * Stops the prefetch thread.
+     */
+    void halt ()
+    {
+        executor.shutdown();
+    }
+
+    private void prefetch (final int piece)
+    {
+        PieceCache cache = storage.getPieceCache();
+        if (cache == null || cache.contains(piece)
+            || !storage.hasPiece(piece)) {
+            return;
+        }
+
+        final int length = metainfo.getPieceLength(piece);
+        synchronized (positions) {
+            if (pending.contains(piece) || pendingBytes + length > maxPending) {
+                return;
+            }
+            pending.add(piece);
+            pendingBytes += length;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                public void run ()
+                {
+                    try {
+                        storage.prefetchPiece(piece);
+                    } catch (IOException ioe) {
+                        log.log(Level.FINE, "Couldn't prefetch piece " + piece,
+                            ioe);
+                    } finally {
+                        done(piece, length);
+                    }
+                }
+            });
+        } catch (RuntimeException re) {
+            // Rejected after halt().
+            done(piece, length);
+        }
+    }
+
+    private void done (int piece, int length)
+    {
+        synchronized (positions) {
+            pending.remove(piece);
+            pendingBytes -= length;
+        }
+    }
+
+    protected static final Logger log = Logger.getLogger("org.klomp.snark.storage");
+}
@@ -27,6 +27,8 @@ class Request
 {
     final int piece;
 
+    final PartialPiece partial;
+
     final byte[] bs;
 
     final int off;
@@ -36,19 +38,18 @@ class Request
     /**
      * Creates a new Request.
      * 
-     * @param piece
-     *            Piece number requested.
-     * @param bs
-     *            byte array where response should be stored.
+     * @param partial
+     *            the piece requested, the response is stored in its array.
      * @param off
      *            the offset in the array.
      * @param len
      *            the number of bytes requested.
      */
-    Request (int piece, byte[] bs, int off, int len)
+    Request (PartialPiece partial, int off, int len)
     {
-        this.piece = piece;
-        this.bs = bs;
+        this.piece = partial.piece;
+        this.partial = partial;
+        this.bs = partial.bs;
         this.off = off;
         this.len = len;
 
@@ -0,0 +1,51 @@
+/*
+ * ResumeTask - Periodically saves the resume data of the Storage.
+ *
+ * This file is part of Snark.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.klomp.snark;
+
+import java.io.IOException;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * TimerTask that writes the resume data of the Storage so that not all pieces
+ * have to be checked again after a crash.
+ */
+class ResumeTask extends TimerTask
+{
+    private final Storage storage;
+
+    ResumeTask (Storage storage)
+    {
+        this.storage = storage;
+    }
+
+    @Override
+    public void run ()
+    {
+        try {
+            storage.saveResumeData();
+        } catch (IOException ioe) {
+            log.log(Level.WARNING, "Couldn't save resume data", ioe);
+        }
+    }
+
+    protected static final Logger log = Logger.getLogger("org.klomp.snark.storage");
+}
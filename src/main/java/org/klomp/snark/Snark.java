@@ -25,10 +25,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.List;
 import java.util.Random;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
@@ -68,6 +71,46 @@ public class Snark
     /** Obtains information on new peers. */
     public TrackerClient trackerclient;
 
+    /** Whether the storage should memory map the torrent files */
+    public boolean memoryMapped = false;
+
+    /** How the storage allocates new files, see Storage.setAllocation() */
+    public int allocation = Storage.ALLOCATE_SPARSE;
+
+    /** The number of bytes used to cache pieces that are uploaded */
+    public long cacheSize = 16 * 1024 * 1024;
+
+    /** The maximum number of torrent files the storage keeps open */
+    public int maxOpenFiles = FileHandleCache.DEFAULT_MAX_OPEN;
+
+    /** When written pieces are forced to disk, see Storage.setSyncPolicy() */
+    public int syncPolicy = Storage.SYNC_RESUME;
+
+    /** Whether disk reads and writes are ordered to limit seeking */
+    public boolean ioScheduling = false;
+
+    /**
+     * Whether to send uploaded blocks straight from the files. Connections
+     * then use socket channels, on older runtimes their streams can't read
+     * and write at the same time.
+     */
+    public boolean zeroCopy = false;
+
+    /** The numbers of the files in the torrent that are not downloaded */
+    public int[] skipFiles = new int[0];
+
+    /**
+     * How many pieces after the stream cursor are fetched first, 0 when not
+     * streaming. See PeerCoordinator.setStreamWindow().
+     */
+    public int streamWindow = 0;
+
+    /** Whether to ignore the resume data and check all existing pieces */
+    public boolean recheck = false;
+
+    /** The number of threads used to hash pieces of the storage */
+    public int hashThreads = Runtime.getRuntime().availableProcessors();
+
     /**
      * Constructs a Snark client.
      * @param torrent The address of the torrent to download or file to serve
@@ -144,14 +187,14 @@ public class Snark
         if (user_port != -1) {
             port = user_port;
             try {
-                serversocket = new ServerSocket(port);
+                serversocket = openServerSocket(port);
             } catch (IOException ioe) {
                 lastException = ioe;
             }
         } else {
             for (port = MIN_PORT; serversocket == null && port <= MAX_PORT; port++) {
                 try {
-                    serversocket = new ServerSocket(port);
+                    serversocket = openServerSocket(port);
                 } catch (IOException ioe) {
                     lastException = ioe;
                 }
@@ -221,6 +264,7 @@ public class Snark
                         activity = CREATING_TORRENT;
                         storage = new Storage(f, "http://" + ip + ":" + port
                             + "/announce", slistener);
+                        configureStorage(storage);
                         storage.create();
                         meta = storage.getMetaInfo();
                     } catch (IOException ioe2) {
@@ -249,6 +293,7 @@ public class Snark
             try {
                 activity = CHECKING_STORAGE;
                 storage = new Storage(meta, slistener);
+                configureStorage(storage);
                 storage.check();
             } catch (IOException ioe) {
                 abort("Could not create storage", ioe);
@@ -257,6 +302,7 @@ public class Snark
 
         activity = COLLECTING_PIECES;
         coordinator = new PeerCoordinator(id, meta, storage, clistener);
+        coordinator.setStreamWindow(streamWindow);
         HttpAcceptor httpacceptor;
         if (ip != null) {
             MetaInfo m = meta.reannounce("http://" + ip + ":" + port
@@ -303,6 +349,56 @@ public class Snark
         coordinator.setTracker(trackerclient);
     }
 
+    /**
+     * Opens a server socket on the given port. With zero copy the socket is
+     * created through a channel so that accepted connections have a channel
+     * that pieces can be send through straight from the files. Otherwise a
+     * plain socket is used, since older runtimes block writes to the streams
+     * of a channel socket while a read is waiting.
+     */
+    private ServerSocket openServerSocket (int port)
+        throws IOException
+    {
+        if (!zeroCopy) {
+            return new ServerSocket(port);
+        }
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        ServerSocket ss = channel.socket();
+        try {
+            ss.bind(new InetSocketAddress(port));
+        } catch (IOException ioe) {
+            channel.close();
+            throw ioe;
+        }
+        return ss;
+    }
+
+    /**
+     * Passes the storage related options to a newly created Storage.
+     */
+    protected void configureStorage (Storage storage)
+        throws IOException
+    {
+        storage.setMemoryMapped(memoryMapped);
+        storage.setHashThreads(hashThreads);
+        storage.setRecheck(recheck);
+        storage.setAllocation(allocation);
+        storage.setCacheSize(cacheSize);
+        storage.setZeroCopy(zeroCopy);
+        storage.setMaxOpenFiles(maxOpenFiles);
+        storage.setIOScheduling(ioScheduling);
+        storage.setSyncPolicy(syncPolicy);
+
+        List files = storage.getMetaInfo().getFiles();
+        int count = (files == null) ? 1 : files.size();
+        for (int file : skipFiles) {
+            if (file < 0 || file >= count) {
+                abort("There is no file " + file + " in the torrent");
+            }
+            storage.setFilePriority(file, Storage.PRIORITY_SKIP);
+        }
+    }
+
     /**
      * Aborts program abnormally.
      */
@@ -61,6 +61,11 @@ public class SnarkShutdown extends Thread
 
         log.log(Level.FINE, "Closing Storage...");
         if (snark.storage != null) {
+            try {
+                snark.storage.saveResumeData();
+            } catch (IOException ioe) {
+                log.log(Level.SEVERE, "Couldn't save resume data", ioe);
+            }
             try {
                 snark.storage.close();
             } catch (IOException ioe) {
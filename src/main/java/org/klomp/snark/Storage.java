@@ -20,18 +20,44 @@
 
 package org.klomp.snark;
 
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.klomp.snark.bencode.BDecoder;
+import org.klomp.snark.bencode.BEValue;
+import org.klomp.snark.bencode.BEncoder;
+
 /**
  * Maintains pieces on disk. Can be used to store and retrieve pieces.
  */
@@ -41,10 +67,82 @@ public class Storage
 
     private long[] lengths;
 
-    private RandomAccessFile[] rafs;
+    // The offset of the first byte of every file in the torrent.
+    private long[] offsets;
+
+    // The files every piece spans, filled in lazily.
+    private Segment[][] pieceSegments;
+
+    // Opens the files when they are needed.
+    private FileHandleCache handles;
+
+    private int maxOpenFiles = FileHandleCache.DEFAULT_MAX_OPEN;
+
+    // When written pieces are forced to disk, one of the SYNC constants.
+    private int syncPolicy = SYNC_RESUME;
+
+    private int syncPieces = DEFAULT_SYNC_PIECES;
+
+    private long syncInterval = DEFAULT_SYNC_INTERVAL;
+
+    // Files written to since the last sync, guarded by itself.
+    private boolean[] dirty;
+
+    // Pieces written since the last sync and when it was, guarded by dirty.
+    private int unsynced;
+
+    private long lastSync = System.currentTimeMillis();
+
+    // The blocks stored of pieces that aren't complete yet, guarded by
+    // bitfield.
+    private final Map<Integer, BitField> partialBlocks = new HashMap<Integer, BitField>();
+
+    // The piece last read or sought to by a StorageInputStream, -1 when
+    // there was none.
+    private volatile int streamCursor = -1;
+
+    // Whether the storage has been closed, guarded by bitfield.
+    private boolean closed;
+
+    // The download priority of every file, guarded by itself.
+    private final int[] priorities;
+
+    // Whether reads and writes go through an IOScheduler once the storage
+    // has been checked or created, and the scheduler itself.
+    private boolean ioScheduling = false;
+
+    private IOScheduler scheduler;
+
+    // Non-null when the files are memory mapped.
+    private MappedFile[] maps;
+
+    private boolean memoryMapped = false;
+
+    // The number of threads used for hashing pieces.
+    private int hashThreads = Runtime.getRuntime().availableProcessors();
 
     private String[] names;
 
+    private File[] dataFiles;
+
+    // Where the resume data is kept, null for a newly created storage.
+    private File resumeFile;
+
+    // Whether pieces were stored since the resume data was last written.
+    private boolean resumeChanged;
+
+    // Recently read pieces, null when caching is disabled.
+    private PieceCache cache;
+
+    // Whether blocks can be send straight from the files.
+    private boolean zeroCopy = false;
+
+    // How new files are allocated.
+    private int allocation = ALLOCATE_SPARSE;
+
+    // Whether to ignore the resume data and check all pieces.
+    private boolean recheck = false;
+
     private final StorageListener listener;
 
     private final BitField bitfield;
@@ -62,6 +160,51 @@ public class Storage
     /** The maximum number of pieces in a torrent. */
     private static long MAX_PIECES = 100 * 1024 / 20;
 
+    /** Only set the file length, blocks are allocated when written. */
+    public static final int ALLOCATE_SPARSE = 0;
+
+    /** Make the file system allocate all blocks of new files up front. */
+    public static final int ALLOCATE_FULL = 1;
+
+    /** Fill new files with zeros. */
+    public static final int ALLOCATE_ZERO = 2;
+
+    /** Never force written pieces to disk, leave it to the OS. */
+    public static final int SYNC_NONE = 0;
+
+    /** Force the written files to disk every couple of pieces or seconds. */
+    public static final int SYNC_BATCHED = 1;
+
+    /** Force the written files to disk before the resume data is saved. */
+    public static final int SYNC_RESUME = 2;
+
+    /** File priority: don't download the file. */
+    public static final int PRIORITY_SKIP = 0;
+
+    /** File priority: download the file after the other files. */
+    public static final int PRIORITY_LOW = 1;
+
+    /** File priority: the default. */
+    public static final int PRIORITY_NORMAL = 2;
+
+    /** File priority: download the file before the other files. */
+    public static final int PRIORITY_HIGH = 3;
+
+    /** The size of the blocks in which partial pieces are stored. */
+    public static final int BLOCK_SIZE = 16 * 1024;
+
+    /** Default number of pieces written between batched syncs. */
+    public static final int DEFAULT_SYNC_PIECES = 16;
+
+    /** Default number of milliseconds between batched syncs. */
+    public static final long DEFAULT_SYNC_INTERVAL = 10 * 1000;
+
+    /** Number of zeros written at once when allocating fully. */
+    private static final int ALLOCATE_CHUNK = 1024 * 1024;
+
+    /** The number of consecutive pieces checked by one hash task. */
+    private static final int CHECK_CHUNK = 8;
+
     /**
      * Creates a new storage based on the supplied MetaInfo. This will try to
      * create and/or check all needed files in the MetaInfo.
@@ -76,6 +219,10 @@ public class Storage
         this.listener = listener;
         needed = metainfo.getPieces();
         bitfield = new BitField(needed);
+
+        List files = metainfo.getFiles();
+        priorities = new int[files == null ? 1 : files.size()];
+        Arrays.fill(priorities, PRIORITY_NORMAL);
     }
 
     /**
@@ -88,8 +235,10 @@ public class Storage
     {
         this.listener = listener;
 
-        // Create names, rafs and lengths arrays.
+        // Create names, files and lengths arrays.
         getFiles(baseFile);
+        priorities = new int[lengths.length];
+        Arrays.fill(priorities, PRIORITY_NORMAL);
 
         long total = 0;
         ArrayList<Long> lengthsList = new ArrayList<Long>();
@@ -130,36 +279,67 @@ public class Storage
         // Note that the piece_hashes are not correctly setup yet.
         metainfo = new MetaInfo(announce, baseFile.getName(), files,
             lengthsList, piece_size, piece_hashes, total);
+        createOffsetIndex();
 
     }
 
-    // Creates piece hases for a new storage.
+    /**
+     * Creates the piece hashes for a new storage. The files are read in
+     * order by the calling thread while the pieces are hashed by a pool of
+     * hashThreads workers.
+     */
     public void create () throws IOException
     {
-        // Calculate piece_hashes
-        MessageDigest digest = null;
-        try {
-            digest = MessageDigest.getInstance("SHA");
-        } catch (NoSuchAlgorithmException nsa) {
-            throw new InternalError(nsa.toString());
+        final byte[] piece_hashes = metainfo.getPieceHashes();
+
+        handles = new FileHandleCache(dataFiles, "r", maxOpenFiles);
+        mapFiles(false);
+
+        // Buffers not being read into or hashed. Limits how far the reader
+        // can run ahead of the hashers.
+        final BlockingQueue<byte[]> free = new ArrayBlockingQueue<byte[]>(
+            2 * hashThreads);
+        while (free.remainingCapacity() > 0) {
+            free.add(new byte[piece_size]);
         }
 
-        byte[] piece_hashes = metainfo.getPieceHashes();
+        ExecutorService pool = createHashPool("Storage creator");
+        try {
+            long started = System.currentTimeMillis();
+            long hashed = 0;
+            int reported = 0;
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>(
+                pieces);
+            for (int i = 0; i < pieces; i++) {
+                final byte[] piece = takeBuffer(free);
+                final int nr = i;
+                final int length = getUncheckedPiece(i, piece, 0);
+                results.add(pool.submit(new Callable<Integer>() {
+                    public Integer call ()
+                    {
+                        MessageDigest digest = digests.get();
+                        digest.update(piece, 0, length);
+                        byte[] hash = digest.digest();
+                        System.arraycopy(hash, 0, piece_hashes, 20 * nr, 20);
+                        free.add(piece);
+                        return length;
+                    }
+                }));
 
-        byte[] piece = new byte[piece_size];
-        for (int i = 0; i < pieces; i++) {
-            int length = getUncheckedPiece(i, piece, 0);
-            digest.update(piece, 0, length);
-            byte[] hash = digest.digest();
-            for (int j = 0; j < 20; j++) {
-                piece_hashes[20 * i + j] = hash[j];
+                // Report the pieces that are done, in order.
+                while (reported < results.size()
+                    && results.get(reported).isDone()) {
+                    hashed += waitFor(results.get(reported));
+                    pieceHashed(reported++, hashed, started);
+                }
             }
 
-            bitfield.set(i);
-
-            if (listener != null) {
-                listener.storageChecked(this, i, true);
+            while (reported < pieces) {
+                hashed += waitFor(results.get(reported));
+                pieceHashed(reported++, hashed, started);
             }
+        } finally {
+            pool.shutdownNow();
         }
 
         if (listener != null) {
@@ -168,6 +348,33 @@ public class Storage
 
         // Reannounce to force recalculating the info_hash.
         metainfo = metainfo.reannounce(metainfo.getAnnounce());
+        startScheduler();
+    }
+
+    /**
+     * Records that a piece of a new storage has been hashed.
+     */
+    private void pieceHashed (int piece, long hashed, long started)
+    {
+        bitfield.set(piece);
+
+        if (listener != null) {
+            listener.storageChecked(this, piece, true);
+            listener.storageHashed(this, piece, pieces, hashed,
+                System.currentTimeMillis() - started);
+        }
+    }
+
+    private static byte[] takeBuffer (BlockingQueue<byte[]> free)
+        throws IOException
+    {
+        try {
+            return free.take();
+        } catch (InterruptedException ie) {
+            IOException ioe = new IOException("Interrupted while hashing");
+            ioe.initCause(ie);
+            throw ioe;
+        }
     }
 
     private void getFiles (File base) throws IOException
@@ -177,16 +384,16 @@ public class Storage
 
         int size = files.size();
         names = new String[size];
+        dataFiles = new File[size];
         lengths = new long[size];
-        rafs = new RandomAccessFile[size];
 
         int i = 0;
         Iterator it = files.iterator();
         while (it.hasNext()) {
             File f = (File)it.next();
             names[i] = f.getPath();
+            dataFiles[i] = f;
             lengths[i] = f.length();
-            rafs[i] = new RandomAccessFile(f, "r");
             i++;
         }
     }
@@ -208,6 +415,35 @@ public class Storage
         }
     }
 
+    /**
+     * Sets whether all files should be memory mapped. When set pieces are
+     * read and written through memory mapped windows of the files instead of
+     * through positional read and write calls. Needs to be called before check()
+     * or create().
+     */
+    public void setMemoryMapped (boolean memoryMapped)
+    {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Sets the number of threads used to check the hashes of existing pieces
+     * and to hash the pieces of a newly created storage. Using one thread
+     * checks all existing pieces in the calling thread.
+     */
+    public void setHashThreads (int threads)
+    {
+        hashThreads = Math.max(1, threads);
+    }
+
+    /**
+     * Whether or not the files of this storage are memory mapped.
+     */
+    public boolean isMemoryMapped ()
+    {
+        return memoryMapped;
+    }
+
     /**
      * Returns the MetaInfo associated with this Storage.
      */
@@ -241,6 +477,18 @@ public class Storage
         return bitfield;
     }
 
+    /**
+     * Returns a snapshot of the pieces this storage contains, see
+     * BitField.snapshot(). It doesn't change when pieces are added later and
+     * can be read without locking.
+     */
+    public BitField getBitFieldSnapshot ()
+    {
+        synchronized (bitfield) {
+            return bitfield.snapshot();
+        }
+    }
+
     /**
      * Creates (and/or checks) all files from the metainfo file list.
      */
@@ -257,11 +505,11 @@ public class Storage
             }
 
             lengths = new long[1];
-            rafs = new RandomAccessFile[1];
             names = new String[1];
+            dataFiles = new File[1];
             lengths[0] = metainfo.getTotalLength();
-            rafs[0] = new RandomAccessFile(base, "rw");
             names[0] = base.getName();
+            dataFiles[0] = base;
         } else {
             // Create base as dir.
             log.log(Level.INFO, "Creating/Checking directory: " + base);
@@ -273,14 +521,14 @@ public class Storage
             int size = files.size();
             long total = 0;
             lengths = new long[size];
-            rafs = new RandomAccessFile[size];
             names = new String[size];
+            dataFiles = new File[size];
             for (int i = 0; i < size; i++) {
                 File f = createFileFromNames(base, (List)files.get(i));
                 lengths[i] = ((Long)ls.get(i)).longValue();
                 total += lengths[i];
-                rafs[i] = new RandomAccessFile(f, "rw");
                 names[i] = f.getName();
+                dataFiles[i] = f;
             }
 
             // Sanity check for metainfo file.
@@ -290,6 +538,9 @@ public class Storage
                     + " != " + metalength);
             }
         }
+        createOffsetIndex();
+        handles = new FileHandleCache(dataFiles, "rw", maxOpenFiles);
+        resumeFile = new File(base.getPath() + ".resume");
         checkCreateFiles();
     }
 
@@ -332,186 +583,1440 @@ public class Storage
         // if any of the files already exists we assume we are resuming.
         boolean resume = false;
 
+        // The resume data can only be trusted if all files already existed.
+        boolean allocated = false;
+
         // Make sure all files are available and of correct length
-        for (int i = 0; i < rafs.length; i++) {
-            long length = rafs[i].length();
+        for (int i = 0; i < dataFiles.length; i++) {
+            long length = dataFiles[i].length();
             if (length == lengths[i]) {
                 if (listener != null) {
                     listener.storageAllocated(this, length);
                 }
                 resume = true; // XXX Could dynamicly check
+            } else if (length < lengths[i] && isSkipped(i)) {
+                // Skipped files only get the parts of the pieces they share
+                // with wanted files, which are written as they come.
+                log.log(Level.FINE, "Not allocating skipped '" + names[i]
+                    + "'");
             } else if (length == 0) {
                 allocateFile(i);
+                allocated = true;
             } else {
                 log.log(Level.FINE, "Truncating '" + names[i]
                     + "' from " + lengths + " to " + lengths[i] + "bytes");
-                rafs[i].setLength(lengths[i]);
                 allocateFile(i);
+                allocated = true;
             }
         }
 
+        mapFiles(true);
+
         // Check which pieces match and which don't
         if (resume) {
             pieces = metainfo.getPieces();
-            byte[] piece = new byte[metainfo.getPieceLength(0)];
-            for (int i = 0; i < pieces; i++) {
-                int length = getUncheckedPiece(i, piece, 0);
-                boolean correctHash = metainfo.checkPiece(i, piece, 0, length);
-                if (correctHash) {
-                    bitfield.set(i);
-                    needed--;
-                }
-
-                if (listener != null) {
-                    listener.storageChecked(this, i, correctHash);
+            if (!allocated && !recheck && readResumeData()) {
+                log.log(Level.INFO, "Using resume data from " + resumeFile
+                    + ", " + needed + " pieces needed");
+            } else if (hashThreads > 1 && pieces > CHECK_CHUNK) {
+                checkPiecesParallel();
+            } else {
+                byte[] piece = new byte[metainfo.getPieceLength(0)];
+                for (int i = 0; i < pieces; i++) {
+                    boolean correctHash = false;
+                    if (inFiles(i)) {
+                        int length = getUncheckedPiece(i, piece, 0);
+                        correctHash = metainfo.checkPiece(i, piece, 0, length);
+                    }
+                    pieceChecked(i, correctHash);
                 }
             }
         }
 
+        // Make sure the (checked) state gets saved at least once.
+        resumeChanged = true;
+        startScheduler();
+
         if (listener != null) {
             listener.storageAllChecked(this);
         }
     }
 
-    private void allocateFile (int nr) throws IOException
+    /**
+     * Returns true when all bytes of the piece lie within the files as they
+     * are now, which isn't the case for pieces of skipped files that were
+     * never allocated.
+     */
+    private boolean inFiles (int piece)
     {
-        // XXX - Is this the best way to make sure we have enough space for
-        // the whole file?
-        listener.storageCreateFile(this, names[nr], lengths[nr]);
-        final int ZEROBLOCKSIZE = metainfo.getPieceLength(0);
-        byte[] zeros = new byte[ZEROBLOCKSIZE];
-        int i;
-        for (i = 0; i < lengths[nr] / ZEROBLOCKSIZE; i++) {
-            rafs[nr].write(zeros);
-            if (listener != null) {
-                listener.storageAllocated(this, ZEROBLOCKSIZE);
+        for (Segment seg : getPieceSegments(piece)) {
+            if (dataFiles[seg.file].length() < seg.start + seg.len) {
+                return false;
             }
         }
-        int size = (int)(lengths[nr] - i * ZEROBLOCKSIZE);
-        rafs[nr].write(zeros, 0, size);
-        if (listener != null) {
-            listener.storageAllocated(this, size);
+        return true;
+    }
+
+    /**
+     * Sets the download priority of the given file to PRIORITY_SKIP,
+     * PRIORITY_LOW, PRIORITY_NORMAL or PRIORITY_HIGH. Skipped files are not
+     * allocated when set before check(). A skipped file that is wanted again
+     * after the storage was checked is allocated sparsely.
+     * 
+     * @exception IllegalArgumentException
+     *                when the priority is unknown.
+     */
+    public void setFilePriority (int file, int priority) throws IOException
+    {
+        if (priority < PRIORITY_SKIP || priority > PRIORITY_HIGH) {
+            throw new IllegalArgumentException("Unknown priority: " + priority);
+        }
+
+        boolean wasSkipped;
+        synchronized (priorities) {
+            wasSkipped = priorities[file] == PRIORITY_SKIP;
+            priorities[file] = priority;
+        }
+
+        if (wasSkipped && priority != PRIORITY_SKIP && handles != null
+            && dataFiles[file].length() < lengths[file]) {
+            FileHandleCache.Handle h = handles.acquire(file);
+            try {
+                h.raf.setLength(lengths[file]);
+            } finally {
+                handles.release(h);
+            }
         }
     }
 
     /**
-     * Closes the Storage and makes sure that all RandomAccessFiles are closed.
-     * The Storage is unusable after this.
+     * Returns the download priority of the given file.
      */
-    public void close () throws IOException
+    public int getFilePriority (int file)
     {
-        for (RandomAccessFile element : rafs) {
-            synchronized (element) {
-                element.close();
+        synchronized (priorities) {
+            return priorities[file];
+        }
+    }
+
+    private boolean isSkipped (int file)
+    {
+        return getFilePriority(file) == PRIORITY_SKIP;
+    }
+
+    /**
+     * Returns the download priority of the given piece, which is the highest
+     * priority of the files it is part of. Pieces at the boundary of a
+     * skipped file are still needed for the file next to it.
+     */
+    public int getPiecePriority (int piece)
+    {
+        int priority = PRIORITY_SKIP;
+        synchronized (priorities) {
+            for (Segment seg : getPieceSegments(piece)) {
+                priority = Math.max(priority, priorities[seg.file]);
             }
         }
+        return priority;
     }
 
     /**
-     * Returns a byte array containing the requested piece or null if the
-     * storage doesn't contain the piece yet.
+     * Sets whether the resume data should be ignored and all existing pieces
+     * should be checked again. Needs to be called before check().
      */
-    public byte[] getPiece (int piece) throws IOException
+    public void setRecheck (boolean recheck)
     {
-        if (!bitfield.get(piece)) {
-            return null;
+        this.recheck = recheck;
+    }
+
+    /**
+     * Writes the resume data for this storage if any pieces have been stored
+     * since it was last written. The resume data contains the info hash, the
+     * BitField and the length and modification time of every file. When all
+     * of these still match on the next start the pieces don't need to be
+     * checked again. Does nothing for a storage created from existing files.
+     */
+    public synchronized void saveResumeData () throws IOException
+    {
+        if (resumeFile == null || !resumeChanged) {
+            return;
         }
 
-        byte[] bs = new byte[metainfo.getPieceLength(piece)];
-        getUncheckedPiece(piece, bs, 0);
-        return bs;
+        // Take the bitfield first, pieces stored later will either change
+        // the file modification time or be fetched again.
+        BitField bits;
+        List<Map<String, Object>> partialList = new ArrayList<Map<String, Object>>();
+        synchronized (bitfield) {
+            bits = bitfield.snapshot();
+            for (Map.Entry<Integer, BitField> e : partialBlocks.entrySet()) {
+                Map<String, Object> partial = new HashMap<String, Object>();
+                partial.put("piece", e.getKey());
+                partial.put("blocks", e.getValue().getFieldBytes());
+                partialList.add(partial);
+            }
+            resumeChanged = false;
+        }
+
+        if (syncPolicy != SYNC_NONE) {
+            // Never claim pieces that might not be on disk yet.
+            sync();
+        } else if (maps != null) {
+            // Make sure the modification times are up to date.
+            for (MappedFile element : maps) {
+                element.force();
+            }
+        }
+
+        List<Map<String, Object>> fileList = new ArrayList<Map<String, Object>>();
+        for (File element : dataFiles) {
+            Map<String, Object> file = new HashMap<String, Object>();
+            file.put("length", element.length());
+            file.put("mtime", element.lastModified());
+            fileList.add(file);
+        }
+
+        Map<String, Object> m = new HashMap<String, Object>();
+        m.put("info_hash", metainfo.getInfoHash());
+        m.put("bitfield", bits.getFieldBytes());
+        m.put("partial", partialList);
+        m.put("files", fileList);
+
+        // Write to a temporary file first so a crash never leaves a half
+        // written resume file behind.
+        File tmp = new File(resumeFile.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            BEncoder.bencode(m, out);
+        } finally {
+            out.close();
+        }
+        resumeFile.delete();
+        if (!tmp.renameTo(resumeFile)) {
+            throw new IOException("Could not rename " + tmp + " to "
+                + resumeFile);
+        }
+        log.log(Level.FINE, "Saved resume data to " + resumeFile);
     }
 
     /**
-     * Put the piece in the Storage if it is correct.
-     * 
-     * @return true if the piece was correct (sha metainfo hash matches),
-     *         otherwise false.
-     * @exception IOException
-     *                when some storage related error occurs.
+     * Reads the resume data and sets the BitField from it if the info hash,
+     * lengths and modification times of all files still match. Returns
+     * false when the pieces need to be checked.
      */
-    public boolean putPiece (int piece, byte[] bs) throws IOException
+    private boolean readResumeData ()
     {
-        // First check if the piece is correct.
-        // If we were paranoia we could copy the array first.
-        int length = bs.length;
-        boolean correctHash = metainfo.checkPiece(piece, bs, 0, length);
-        if (listener != null) {
-            listener.storageChecked(this, piece, correctHash);
+        if (!resumeFile.exists()) {
+            return false;
         }
-        if (!correctHash) {
+
+        try {
+            Map m;
+            InputStream in = new FileInputStream(resumeFile);
+            try {
+                m = new BDecoder(in).bdecodeMap().getMap();
+            } finally {
+                in.close();
+            }
+
+            BEValue val = (BEValue)m.get("info_hash");
+            if (val == null
+                || !Arrays.equals(val.getBytes(), metainfo.getInfoHash())) {
+                log.log(Level.INFO, "Resume data is for another torrent");
+                return false;
+            }
+
+            val = (BEValue)m.get("files");
+            if (val == null || val.getList().size() != dataFiles.length) {
+                log.log(Level.INFO, "Resume data has wrong number of files");
+                return false;
+            }
+            List<BEValue> fileList = val.getList();
+            for (int i = 0; i < dataFiles.length; i++) {
+                Map file = fileList.get(i).getMap();
+                BEValue length = (BEValue)file.get("length");
+                BEValue mtime = (BEValue)file.get("mtime");
+                if (length == null || mtime == null
+                    || length.getLong() != dataFiles[i].length()
+                    || mtime.getLong() != dataFiles[i].lastModified()) {
+                    log.log(Level.INFO, "'" + names[i]
+                        + "' changed since resume data was saved");
+                    return false;
+                }
+            }
+
+            val = (BEValue)m.get("bitfield");
+            if (val == null || val.getBytes().length < (pieces + 7) / 8) {
+                log.log(Level.INFO, "Resume data has a bad bitfield");
+                return false;
+            }
+            BitField saved = new BitField(val.getBytes(), pieces);
+            for (int i = 0; i < pieces; i++) {
+                pieceChecked(i, saved.get(i));
+            }
+
+            // Older resume data doesn't have any partial pieces.
+            val = (BEValue)m.get("partial");
+            if (val != null) {
+                readPartialBlocks(val.getList());
+            }
+            return true;
+        } catch (IOException ioe) {
+            log.log(Level.WARNING, "Ignoring unreadable resume data "
+                + resumeFile, ioe);
             return false;
         }
+    }
 
-        synchronized (bitfield) {
-            if (bitfield.get(piece)) {
-                return true; // No need to store twice.
+    /**
+     * Restores the stored blocks of partial pieces from the resume data.
+     * Pieces of which all blocks were stored are checked right away.
+     */
+    private void readPartialBlocks (List<BEValue> partialList)
+        throws IOException
+    {
+        byte[] bs = null;
+        for (BEValue element : partialList) {
+            Map partial = element.getMap();
+            BEValue pieceVal = (BEValue)partial.get("piece");
+            BEValue blocksVal = (BEValue)partial.get("blocks");
+            if (pieceVal == null || blocksVal == null) {
+                continue;
+            }
+            int piece = pieceVal.getInt();
+            if (piece < 0 || piece >= pieces || bitfield.get(piece)) {
+                continue;
+            }
+            int count = getBlockCount(piece);
+            if (blocksVal.getBytes().length < (count + 7) / 8) {
+                continue;
+            }
+            BitField blocks = new BitField(blocksVal.getBytes(), count);
+            if (blocks.cardinality() == count) {
+                if (bs == null) {
+                    bs = new byte[metainfo.getPieceLength(0)];
+                }
+                int length = getUncheckedPiece(piece, bs, 0);
+                pieceChecked(piece, metainfo.checkPiece(piece, bs, 0, length));
             } else {
-                bitfield.set(piece);
-                needed--;
+                partialBlocks.put(piece, blocks);
             }
         }
+    }
 
-        long start = piece * metainfo.getPieceLength(0);
-        int i = 0;
-        long raflen = lengths[i];
-        while (start > raflen) {
-            i++;
-            start -= raflen;
-            raflen = lengths[i];
+    /**
+     * Records the result of checking an existing piece.
+     */
+    private void pieceChecked (int piece, boolean correctHash)
+    {
+        if (correctHash) {
+            bitfield.set(piece);
+            needed--;
+        }
+
+        if (listener != null) {
+            listener.storageChecked(this, piece, correctHash);
         }
+    }
 
-        int written = 0;
-        int off = 0;
-        while (written < length) {
-            int need = length - written;
-            int len = (start + need < raflen) ? need : (int)(raflen - start);
-            synchronized (rafs[i]) {
-                rafs[i].seek(start);
-                rafs[i].write(bs, off + written, len);
+    /**
+     * Checks all pieces using hashThreads threads. The pieces are split in
+     * chunks of consecutive pieces that are handed out to the workers in
+     * order so the disk is still read (mostly) sequentially. The results are
+     * reported in piece order from the calling thread.
+     */
+    private void checkPiecesParallel () throws IOException
+    {
+        final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+            @Override
+            protected byte[] initialValue ()
+            {
+                return new byte[metainfo.getPieceLength(0)];
             }
-            written += len;
-            if (need - len > 0) {
-                i++;
-                raflen = lengths[i];
-                start = 0;
+        };
+
+        ExecutorService pool = createHashPool("Storage checker");
+        try {
+            List<Future<boolean[]>> results = new ArrayList<Future<boolean[]>>();
+            for (int start = 0; start < pieces; start += CHECK_CHUNK) {
+                final int first = start;
+                final int last = Math.min(start + CHECK_CHUNK, pieces);
+                results.add(pool.submit(new Callable<boolean[]>() {
+                    public boolean[] call () throws IOException
+                    {
+                        MessageDigest digest = digests.get();
+                        byte[] piece = buffers.get();
+                        boolean[] checked = new boolean[last - first];
+                        for (int i = first; i < last; i++) {
+                            if (inFiles(i)) {
+                                int length = getUncheckedPiece(i, piece, 0);
+                                checked[i - first] = metainfo.checkPiece(
+                                    digest, i, piece, 0, length);
+                            }
+                        }
+                        return checked;
+                    }
+                }));
+            }
+
+            int piece = 0;
+            for (Future<boolean[]> result : results) {
+                for (boolean correctHash : waitFor(result)) {
+                    pieceChecked(piece++, correctHash);
+                }
             }
+        } finally {
+            pool.shutdownNow();
         }
+    }
 
-        return true;
+    /**
+     * Creates a pool of hashThreads daemon threads to hash pieces.
+     */
+    private ExecutorService createHashPool (final String name)
+    {
+        return Executors.newFixedThreadPool(hashThreads, new ThreadFactory() {
+            private int count = 0;
+
+            public Thread newThread (Runnable r)
+            {
+                Thread t = new Thread(r, name + " " + (++count));
+                t.setDaemon(true);
+                return t;
+            }
+        });
     }
 
-    private int getUncheckedPiece (int piece, byte[] bs, int off)
-        throws IOException
+    /**
+     * Waits for the result of a hash task, rethrowing any IOException it
+     * threw.
+     */
+    private static <T> T waitFor (Future<T> future) throws IOException
     {
-        // XXX - copy/paste code from putPiece().
-        long start = piece * metainfo.getPieceLength(0);
-        int length = metainfo.getPieceLength(piece);
-        int i = 0;
-        long raflen = lengths[i];
-        while (start > raflen) {
-            i++;
-            start -= raflen;
-            raflen = lengths[i];
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            IOException ioe = new IOException("Interrupted while hashing");
+            ioe.initCause(ie);
+            throw ioe;
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            IOException ioe = new IOException("Hashing failed");
+            ioe.initCause(cause);
+            throw ioe;
         }
+    }
 
-        int read = 0;
-        while (read < length) {
-            int need = length - read;
-            int len = (start + need < raflen) ? need : (int)(raflen - start);
-            synchronized (rafs[i]) {
-                rafs[i].seek(start);
-                rafs[i].readFully(bs, off + read, len);
-            }
-            read += len;
-            if (need - len > 0) {
-                i++;
-                raflen = lengths[i];
-                start = 0;
+    /** Reusable SHA1 digest for each hashing thread. */
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue ()
+        {
+            try {
+                return MessageDigest.getInstance("SHA");
+            } catch (NoSuchAlgorithmException nsa) {
+                throw new InternalError(nsa.toString());
             }
         }
+    };
 
-        return length;
+    /**
+     * Memory maps all files when requested. Parts of files that aren't
+     * allocated, like those of skipped files, are read and written through
+     * the channels till the file covers them.
+     */
+    private void mapFiles (boolean writable) throws IOException
+    {
+        if (!memoryMapped) {
+            return;
+        }
+
+        maps = new MappedFile[dataFiles.length];
+        for (int i = 0; i < dataFiles.length; i++) {
+            maps[i] = new MappedFile(handles, i, lengths[i], writable);
+        }
+    }
+
+    /**
+     * Sets the maximum number of files kept open at once. Files are opened
+     * when needed and the least recently used ones are closed. Needs to be
+     * called before check() or create().
+     */
+    public void setMaxOpenFiles (int maxOpenFiles)
+    {
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    /**
+     * Sets whether reads and writes after checking or creating the storage
+     * are ordered by an IOScheduler to limit disk seeks. The scheduler does
+     * them one at a time, so this only helps on spinning disks. Needs to be
+     * called before check() or create().
+     */
+    public void setIOScheduling (boolean ioScheduling)
+    {
+        this.ioScheduling = ioScheduling;
+    }
+
+    /**
+     * Returns the IOScheduler or null when reads and writes aren't
+     * scheduled.
+     */
+    public IOScheduler getIOScheduler ()
+    {
+        return scheduler;
+    }
+
+    private void startScheduler ()
+    {
+        if (ioScheduling && scheduler == null) {
+            scheduler = new IOScheduler("IOScheduler " + metainfo.getName());
+        }
+    }
+
+    /**
+     * Returns the cache of open files, null before check() or create().
+     */
+    public FileHandleCache getFileHandleCache ()
+    {
+        return handles;
+    }
+
+    /**
+     * Sets how new files are allocated on disk, one of ALLOCATE_SPARSE,
+     * ALLOCATE_FULL or ALLOCATE_ZERO. Needs to be called before check().
+     * ALLOCATE_FULL writes zeros in large chunks straight from a direct
+     * buffer. On file systems like ext4, XFS or NTFS that reserves the
+     * blocks of the file, but copy-on-write file systems (btrfs, ZFS) write
+     * later changes to new blocks and compressing ones store the zeros in
+     * next to no space, so there the disk can still fill up while
+     * downloading.
+     */
+    public void setAllocation (int allocation)
+    {
+        if (allocation != ALLOCATE_SPARSE && allocation != ALLOCATE_FULL
+            && allocation != ALLOCATE_ZERO) {
+            throw new IllegalArgumentException("Unknown allocation: "
+                + allocation);
+        }
+        this.allocation = allocation;
+    }
+
+    private void allocateFile (int nr) throws IOException
+    {
+        if (listener != null) {
+            listener.storageCreateFile(this, names[nr], lengths[nr]);
+        }
+
+        FileHandleCache.Handle h = handles.acquire(nr);
+        try {
+            allocateFile(nr, h.raf);
+        } finally {
+            handles.release(h);
+        }
+    }
+
+    private void allocateFile (int nr, RandomAccessFile raf)
+        throws IOException
+    {
+        // Always set the length first, for sparse allocation that is all
+        // there is to it.
+        raf.setLength(lengths[nr]);
+        if (allocation == ALLOCATE_SPARSE) {
+            if (listener != null) {
+                listener.storageAllocated(this, lengths[nr]);
+            }
+            return;
+        }
+
+        final int BLOCKSIZE = metainfo.getPieceLength(0);
+        if (allocation == ALLOCATE_FULL) {
+            // There is no portable way to ask the file system to reserve
+            // the space, so write zeros in big positional writes, which is
+            // what posix_fallocate() falls back to.
+            FileChannel channel = raf.getChannel();
+            ByteBuffer zeros = ByteBuffer.allocateDirect(ALLOCATE_CHUNK);
+            long pos = 0;
+            while (pos < lengths[nr]) {
+                zeros.clear();
+                zeros.limit((int)Math.min(ALLOCATE_CHUNK, lengths[nr] - pos));
+                long start = pos;
+                while (zeros.hasRemaining()) {
+                    pos += channel.write(zeros, pos);
+                }
+                if (listener != null) {
+                    listener.storageAllocated(this, pos - start);
+                }
+            }
+            return;
+        }
+
+        // Zero fill.
+        byte[] zeros = new byte[BLOCKSIZE];
+        raf.seek(0);
+        long i;
+        for (i = 0; i < lengths[nr] / BLOCKSIZE; i++) {
+            raf.write(zeros);
+            if (listener != null) {
+                listener.storageAllocated(this, BLOCKSIZE);
+            }
+        }
+        int size = (int)(lengths[nr] - i * BLOCKSIZE);
+        raf.write(zeros, 0, size);
+        if (listener != null) {
+            listener.storageAllocated(this, size);
+        }
+    }
+
+    /**
+     * Closes the Storage and makes sure that all RandomAccessFiles are closed.
+     * The Storage is unusable after this.
+     */
+    public void close () throws IOException
+    {
+        synchronized (bitfield) {
+            closed = true;
+            bitfield.notifyAll();
+        }
+        if (scheduler != null) {
+            scheduler.close();
+        }
+        if (maps != null) {
+            for (MappedFile element : maps) {
+                element.close();
+            }
+        }
+        handles.close();
+    }
+
+    /**
+     * Sets the maximum number of bytes used to cache pieces that are read,
+     * zero disables the cache.
+     */
+    public void setCacheSize (long cacheSize)
+    {
+        cache = (cacheSize > 0) ? new PieceCache(cacheSize) : null;
+    }
+
+    /**
+     * Returns the cache of recently read pieces or null if there is none.
+     */
+    public PieceCache getPieceCache ()
+    {
+        return cache;
+    }
+
+    /**
+     * Returns a byte array containing the requested piece or null if the
+     * storage doesn't contain the piece yet. The array might be shared with
+     * other callers through the piece cache so it must not be changed.
+     */
+    public byte[] getPiece (int piece) throws IOException
+    {
+        if (!hasPiece(piece)) {
+            return null;
+        }
+
+        PieceCache c = cache;
+        byte[] bs = (c != null) ? c.get(piece) : null;
+        if (bs == null) {
+            bs = new byte[metainfo.getPieceLength(piece)];
+            getUncheckedPiece(piece, bs, 0);
+            if (c != null) {
+                c.put(piece, bs);
+            }
+        }
+        return bs;
+    }
+
+    /**
+     * Reads the piece into the piece cache unless it is already there.
+     * Returns false when there is no cache or the storage doesn't contain the
+     * piece yet.
+     */
+    public boolean prefetchPiece (int piece) throws IOException
+    {
+        PieceCache c = cache;
+        if (c == null || !hasPiece(piece)) {
+            return false;
+        }
+        if (!c.contains(piece)) {
+            byte[] bs = new byte[metainfo.getPieceLength(piece)];
+            getUncheckedPiece(piece, bs, 0);
+            c.put(piece, bs);
+        }
+        return true;
+    }
+
+    /**
+     * Reads length bytes starting at begin of the given piece into the
+     * given array. Only the requested bytes are read from disk the first
+     * time a piece that isn't in the piece cache is asked for. When it is
+     * asked for again the whole piece is read into the cache. Returns false
+     * if the storage doesn't contain the piece yet.
+     * 
+     * @exception IndexOutOfBoundsException
+     *                when the block doesn't lie within the piece.
+     */
+    public boolean getBlock (int piece, int begin, int length, byte[] bs,
+        int off) throws IOException
+    {
+        if (!hasPiece(piece)) {
+            return false;
+        }
+
+        if (begin < 0 || length < 0
+            || begin + length > metainfo.getPieceLength(piece)) {
+            throw new IndexOutOfBoundsException("Block (" + piece + ", "
+                + begin + ", " + length + ") outside piece");
+        }
+
+        PieceCache c = cache;
+        byte[] cached = (c != null) ? c.get(piece) : null;
+        if (cached == null && c != null && c.getMisses(piece) > 1) {
+            // Requested before, others will probably follow.
+            cached = new byte[metainfo.getPieceLength(piece)];
+            getUncheckedPiece(piece, cached, 0);
+            c.put(piece, cached);
+        }
+        if (cached != null) {
+            System.arraycopy(cached, begin, bs, off, length);
+        } else {
+            access(piece, begin, bs, off, length, false);
+        }
+        return true;
+    }
+
+    /**
+     * Sets whether blocks that are not in the piece cache should be send
+     * straight from the files to the connections, see getRegions().
+     */
+    public void setZeroCopy (boolean zeroCopy)
+    {
+        this.zeroCopy = zeroCopy;
+    }
+
+    public boolean isZeroCopy ()
+    {
+        return zeroCopy;
+    }
+
+    /**
+     * Returns the file regions making up the block of length bytes starting
+     * at begin of the given piece. Returns null when the storage doesn't
+     * contain the piece, when zero copy sending is disabled or when the piece
+     * is cached, in which case getBlock() should be used.
+     * 
+     * @exception IndexOutOfBoundsException
+     *                when the block doesn't lie within the piece.
+     */
+    public FileRegion[] getRegions (int piece, int begin, int length)
+    {
+        if (!zeroCopy || !hasPiece(piece)) {
+            return null;
+        }
+
+        PieceCache c = cache;
+        if (c != null && c.contains(piece)) {
+            return null;
+        }
+
+        if (begin < 0 || length < 0
+            || begin + length > metainfo.getPieceLength(piece)) {
+            throw new IndexOutOfBoundsException("Block (" + piece + ", "
+                + begin + ", " + length + ") outside piece");
+        }
+
+        int end = begin + length;
+        List<FileRegion> regions = new ArrayList<FileRegion>(2);
+        for (Segment seg : getPieceSegments(piece)) {
+            int from = Math.max(begin, seg.off);
+            int to = Math.min(end, seg.off + seg.len);
+            if (from < to) {
+                regions.add(new FileRegion(this, seg.file, seg.start + from
+                    - seg.off, to - from));
+            }
+        }
+        return regions.toArray(new FileRegion[regions.size()]);
+    }
+
+    /**
+     * Transfers length bytes starting at position of the given file to the
+     * target channel.
+     */
+    void transferTo (int file, long position, int length,
+        WritableByteChannel target) throws IOException
+    {
+        long end = position + length;
+        while (position < end) {
+            FileHandleCache.Handle h = handles.acquire(file);
+            try {
+                while (position < end) {
+                    long n = h.channel.transferTo(position, end - position,
+                        target);
+                    if (n <= 0) {
+                        if (position >= h.channel.size()) {
+                            throw new EOFException("Unexpected end of file "
+                                + names[file]);
+                        }
+                        // No progress, copy a block through the heap
+                        // instead of trying again right away.
+                        n = copyTo(h.channel, position, end, target);
+                    }
+                    position += n;
+                }
+            } catch (ClosedChannelException cce) {
+                channelClosed(h, cce);
+            } finally {
+                handles.release(h);
+            }
+        }
+    }
+
+    // Copies up to a block of the bytes from position to end of the
+    // channel to the target through a heap buffer. Returns the number of
+    // bytes copied.
+    private static int copyTo (FileChannel channel, long position, long end,
+        WritableByteChannel target) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate((int)Math.min(end - position,
+            BLOCK_SIZE));
+        int n = channel.read(buf, position);
+        if (n <= 0) {
+            throw new EOFException("Unexpected end of file");
+        }
+        buf.flip();
+        while (buf.hasRemaining()) {
+            target.write(buf);
+        }
+        return n;
+    }
+
+    /**
+     * Put the piece in the Storage if it is correct.
+     * 
+     * @return true if the piece was correct (sha metainfo hash matches),
+     *         otherwise false.
+     * @exception IOException
+     *                when some storage related error occurs.
+     */
+    public boolean putPiece (int piece, byte[] bs) throws IOException
+    {
+        if (!verifyPiece(piece, bs)) {
+            return false;
+        }
+
+        writePiece(piece, bs);
+        return true;
+    }
+
+    /**
+     * Checks whether the given piece data matches the metainfo hash without
+     * storing it. Reports the result to the StorageListener.
+     */
+    public boolean verifyPiece (int piece, byte[] bs)
+    {
+        // If we were paranoia we could copy the array first.
+        boolean correctHash = metainfo.checkPiece(piece, bs, 0, bs.length);
+        if (listener != null) {
+            listener.storageChecked(this, piece, correctHash);
+        }
+        return correctHash;
+    }
+
+    /**
+     * Checks whether the given hash of the piece data matches the metainfo
+     * hash. Reports the result to the StorageListener.
+     */
+    public boolean verifyHash (int piece, byte[] hash)
+    {
+        boolean correctHash = metainfo.checkHash(piece, hash);
+        if (listener != null) {
+            listener.storageChecked(this, piece, correctHash);
+        }
+        return correctHash;
+    }
+
+    /**
+     * Writes an already verified piece to the files and marks it as
+     * available. Does nothing when the storage already has the piece.
+     * 
+     * @exception IOException
+     *                when some storage related error occurs.
+     */
+    public void writePiece (int piece, byte[] bs) throws IOException
+    {
+        synchronized (bitfield) {
+            if (bitfield.get(piece)) {
+                return; // No need to store twice.
+            }
+        }
+
+        // Only mark the piece as available after it has been written so the
+        // resume data never claims pieces that never made it to disk.
+        access(piece, 0, bs, 0, bs.length, true);
+        written(piece);
+        pieceStored(piece);
+    }
+
+    /**
+     * Marks an already verified piece of which all blocks were stored with
+     * storeBlock() as available. Returns false, without changing anything,
+     * when not all blocks have been stored, the piece should then be written
+     * with writePiece().
+     */
+    public boolean completePiece (int piece) throws IOException
+    {
+        synchronized (bitfield) {
+            if (bitfield.get(piece)) {
+                return true;
+            }
+            BitField blocks = partialBlocks.get(piece);
+            if (blocks == null || blocks.cardinality() != blocks.size()) {
+                return false;
+            }
+        }
+
+        written(piece);
+        pieceStored(piece);
+        return true;
+    }
+
+    private void pieceStored (int piece)
+    {
+        synchronized (bitfield) {
+            partialBlocks.remove(piece);
+            if (!bitfield.get(piece)) {
+                bitfield.set(piece);
+                needed--;
+                resumeChanged = true;
+
+                // Wake up the streams waiting for it.
+                bitfield.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns a stream that reads the given file of the torrent while it is
+     * downloaded, see StorageInputStream. Reading a skipped file blocks
+     * forever on the pieces that aren't shared with other files. Can only be
+     * called after the storage has been checked or created.
+     * 
+     * @exception IndexOutOfBoundsException
+     *                when there is no such file.
+     */
+    public StorageInputStream getInputStream (int file)
+    {
+        return new StorageInputStream(this, offsets[file], lengths[file]);
+    }
+
+    /**
+     * Returns whether the given piece is available, read under the lock of
+     * the BitField.
+     */
+    boolean hasPiece (int piece)
+    {
+        synchronized (bitfield) {
+            return bitfield.get(piece);
+        }
+    }
+
+    /**
+     * Blocks until the given piece is available. Gives up when the given
+     * stream is closed, which wakes the waiting threads with
+     * streamClosed().
+     * 
+     * @exception InterruptedIOException
+     *                when interrupted while waiting.
+     * @exception IOException
+     *                when the storage or the stream is closed while waiting.
+     */
+    void waitForPiece (int piece, StorageInputStream stream)
+        throws IOException
+    {
+        synchronized (bitfield) {
+            while (!bitfield.get(piece)) {
+                if (closed) {
+                    throw new IOException("Storage closed");
+                }
+                if (stream.isClosed()) {
+                    throw new IOException("Stream closed");
+                }
+                try {
+                    bitfield.wait();
+                } catch (InterruptedException ie) {
+                    throw new InterruptedIOException(
+                        "Interrupted while waiting for piece " + piece);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wakes the threads waiting for a piece so they notice their stream was
+     * closed.
+     */
+    void streamClosed ()
+    {
+        synchronized (bitfield) {
+            bitfield.notifyAll();
+        }
+    }
+
+    void setStreamCursor (int piece)
+    {
+        streamCursor = piece;
+    }
+
+    /**
+     * Returns the piece a StorageInputStream last read from or sought to, or
+     * -1 when no stream was used yet.
+     */
+    public int getStreamCursor ()
+    {
+        return streamCursor;
+    }
+
+    /**
+     * Writes a block of a piece that isn't complete yet to its place in the
+     * files and remembers that it was stored, so it doesn't have to be
+     * downloaded again after a restart. Blocks must start at a multiple of
+     * BLOCK_SIZE and be BLOCK_SIZE long, except for the last block of the
+     * piece. Does nothing when the piece is already complete.
+     * 
+     * @exception IndexOutOfBoundsException
+     *                when the block isn't a proper block of the piece.
+     */
+    public void storeBlock (int piece, int begin, byte[] bs, int off,
+        int length) throws IOException
+    {
+        int pieceLength = metainfo.getPieceLength(piece);
+        if (begin < 0 || begin % BLOCK_SIZE != 0
+            || length != Math.min(BLOCK_SIZE, pieceLength - begin)) {
+            throw new IndexOutOfBoundsException("Not a block (" + piece + ", "
+                + begin + ", " + length + ")");
+        }
+
+        synchronized (bitfield) {
+            if (bitfield.get(piece)) {
+                return;
+            }
+        }
+
+        access(piece, begin, bs, off, length, true);
+        markDirty(piece);
+
+        synchronized (bitfield) {
+            if (!bitfield.get(piece)) {
+                BitField blocks = partialBlocks.get(piece);
+                if (blocks == null) {
+                    blocks = new BitField(getBlockCount(piece));
+                    partialBlocks.put(piece, blocks);
+                }
+                blocks.set(begin / BLOCK_SIZE);
+                resumeChanged = true;
+            }
+        }
+    }
+
+    /**
+     * Forgets the stored blocks of a piece, for example because the piece
+     * turned out to be bad.
+     */
+    public void discardBlocks (int piece)
+    {
+        synchronized (bitfield) {
+            if (partialBlocks.remove(piece) != null) {
+                resumeChanged = true;
+            }
+        }
+    }
+
+    /**
+     * Reads the stored blocks of a piece that isn't complete yet into bs.
+     * Returns which blocks were read, or null when there are none.
+     */
+    public BitField readBlocks (int piece, byte[] bs) throws IOException
+    {
+        BitField blocks;
+        synchronized (bitfield) {
+            BitField stored = partialBlocks.get(piece);
+            if (stored == null || bitfield.get(piece)) {
+                return null;
+            }
+            blocks = stored.snapshot();
+        }
+
+        int pieceLength = metainfo.getPieceLength(piece);
+        for (int i = blocks.nextSetBit(0); i != -1; i = blocks.nextSetBit(i + 1)) {
+            int begin = i * BLOCK_SIZE;
+            access(piece, begin, bs, begin, Math.min(BLOCK_SIZE, pieceLength
+                - begin), false);
+        }
+        return blocks;
+    }
+
+    /**
+     * Returns the number of blocks of the given piece.
+     */
+    public int getBlockCount (int piece)
+    {
+        return (metainfo.getPieceLength(piece) + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /**
+     * Sets when written pieces are forced to disk, one of SYNC_NONE,
+     * SYNC_BATCHED or SYNC_RESUME (the default). With SYNC_NONE the resume
+     * data might claim pieces that were lost in a crash. SYNC_RESUME forces
+     * all written files to disk before the resume data is saved, SYNC_BATCHED
+     * also does so every couple of pieces or seconds, see setSyncBatch().
+     */
+    public void setSyncPolicy (int syncPolicy)
+    {
+        if (syncPolicy != SYNC_NONE && syncPolicy != SYNC_BATCHED
+            && syncPolicy != SYNC_RESUME) {
+            throw new IllegalArgumentException("Unknown sync policy: "
+                + syncPolicy);
+        }
+        this.syncPolicy = syncPolicy;
+    }
+
+    /**
+     * Sets after how many written pieces or milliseconds, whichever comes
+     * first, the written files are forced to disk with SYNC_BATCHED.
+     */
+    public void setSyncBatch (int pieces, long millis)
+    {
+        this.syncPieces = pieces;
+        this.syncInterval = millis;
+    }
+
+    /**
+     * Forces all files that were written to since the last sync to disk.
+     */
+    public void sync () throws IOException
+    {
+        boolean[] files;
+        synchronized (dirty) {
+            files = dirty.clone();
+            Arrays.fill(dirty, false);
+            unsynced = 0;
+            lastSync = System.currentTimeMillis();
+        }
+
+        for (int i = 0; i < files.length; i++) {
+            if (files[i]) {
+                try {
+                    force(i);
+                } catch (IOException ioe) {
+                    // Try again next time.
+                    synchronized (dirty) {
+                        dirty[i] = true;
+                    }
+                    throw ioe;
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces the written files to disk with SYNC_BATCHED when pieces were
+     * written since the last sync and the sync interval has passed. Called
+     * periodically so the last pieces of a burst are synced in time too.
+     */
+    public void syncIfDue () throws IOException
+    {
+        if (syncPolicy != SYNC_BATCHED) {
+            return;
+        }
+        synchronized (dirty) {
+            if (unsynced == 0
+                || System.currentTimeMillis() - lastSync < syncInterval) {
+                return;
+            }
+        }
+        sync();
+    }
+
+    /**
+     * Remembers which files have to be synced after writing the piece and
+     * syncs when the batch is full.
+     */
+    private void written (int piece) throws IOException
+    {
+        markDirty(piece);
+        boolean batchFull;
+        synchronized (dirty) {
+            unsynced++;
+            batchFull = unsynced >= syncPieces
+                || System.currentTimeMillis() - lastSync >= syncInterval;
+        }
+
+        if (syncPolicy == SYNC_BATCHED && batchFull) {
+            sync();
+        }
+    }
+
+    /**
+     * Remembers that the files of the piece have to be synced.
+     */
+    private void markDirty (int piece)
+    {
+        synchronized (dirty) {
+            for (Segment seg : getPieceSegments(piece)) {
+                dirty[seg.file] = true;
+            }
+        }
+    }
+
+    private void force (int i) throws IOException
+    {
+        if (maps != null) {
+            maps[i].force();
+            return;
+        }
+
+        while (true) {
+            FileHandleCache.Handle h = handles.acquire(i);
+            try {
+                h.channel.force(false);
+                return;
+            } catch (ClosedChannelException cce) {
+                channelClosed(h, cce);
+            } finally {
+                handles.release(h);
+            }
+        }
+    }
+
+    private int getUncheckedPiece (int piece, byte[] bs, int off)
+        throws IOException
+    {
+        int length = metainfo.getPieceLength(piece);
+        access(piece, 0, bs, off, length, false);
+        return length;
+    }
+
+    /**
+     * Reads (or writes when write is true) length bytes starting at begin
+     * in the given piece from (or to) the given array. The range can span
+     * multiple files.
+     */
+    private void access (final int piece, final int begin, final byte[] bs,
+        final int off, final int length, final boolean write)
+        throws IOException
+    {
+        IOScheduler s = scheduler;
+        if (s == null) {
+            accessNow(piece, begin, bs, off, length, write);
+        } else {
+            long position = (long)piece * metainfo.getPieceLength(0) + begin;
+            s.execute(position, write, new IOScheduler.Task() {
+                public void run () throws IOException
+                {
+                    accessNow(piece, begin, bs, off, length, write);
+                }
+            });
+        }
+    }
+
+    private void accessNow (int piece, int begin, byte[] bs, int off,
+        int length, boolean write) throws IOException
+    {
+        int end = begin + length;
+        for (Segment seg : getPieceSegments(piece)) {
+            int from = Math.max(begin, seg.off);
+            int to = Math.min(end, seg.off + seg.len);
+            if (from < to) {
+                long start = seg.start + from - seg.off;
+                if (write) {
+                    writeFile(seg.file, start, bs, off + from - begin, to
+                        - from);
+                } else {
+                    readFile(seg.file, start, bs, off + from - begin, to
+                        - from);
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates the offset of every file in the torrent. Must be called
+     * whenever the lengths array is setup.
+     */
+    private void createOffsetIndex ()
+    {
+        dirty = new boolean[lengths.length];
+        offsets = new long[lengths.length];
+        long offset = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            offsets[i] = offset;
+            offset += lengths[i];
+        }
+
+        int count = (int)((offset + metainfo.getPieceLength(0) - 1)
+            / metainfo.getPieceLength(0));
+        pieceSegments = new Segment[count][];
+    }
+
+    /**
+     * Returns the number of the file containing the byte at the given offset
+     * in the torrent. Empty files never contain any bytes so are skipped.
+     */
+    private int getFileIndex (long offset)
+    {
+        // Find the last file starting at or before offset.
+        int low = 0;
+        int high = offsets.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (offsets[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the file segments the given piece spans. The result is cached
+     * since every block of a piece needs the same segments.
+     */
+    private Segment[] getPieceSegments (int piece)
+    {
+        Segment[] segments = pieceSegments[piece];
+        if (segments == null) {
+            long start = (long)piece * metainfo.getPieceLength(0);
+            int length = metainfo.getPieceLength(piece);
+            List<Segment> list = new ArrayList<Segment>(2);
+            int i = getFileIndex(start);
+            int done = 0;
+            while (done < length) {
+                long pos = start + done - offsets[i];
+                int len = (int)Math.min(length - done, lengths[i] - pos);
+                if (len > 0) {
+                    list.add(new Segment(i, pos, done, len));
+                    done += len;
+                }
+                i++;
+            }
+            segments = list.toArray(new Segment[list.size()]);
+            // Racing threads calculate the same immutable result.
+            pieceSegments[piece] = segments;
+        }
+        return segments;
+    }
+
+    private void readFile (int i, long start, byte[] bs, int off, int len)
+        throws IOException
+    {
+        if (maps != null) {
+            int n = maps[i].read(start, bs, off, len);
+            if (n == len) {
+                return;
+            }
+            start += n;
+            off += n;
+            len -= n;
+        }
+
+        // Positional reads don't touch the file pointer, so concurrent
+        // reads of the same file don't have to wait for each other.
+        ByteBuffer buf = ByteBuffer.wrap(bs, off, len);
+        while (buf.hasRemaining()) {
+            FileHandleCache.Handle h = handles.acquire(i);
+            try {
+                while (buf.hasRemaining()) {
+                    if (h.channel.read(buf, start + buf.position() - off) < 0) {
+                        throw new EOFException("Unexpected end of file "
+                            + names[i]);
+                    }
+                }
+            } catch (ClosedChannelException cce) {
+                channelClosed(h, cce);
+            } finally {
+                handles.release(h);
+            }
+        }
+    }
+
+    private void writeFile (int i, long start, byte[] bs, int off, int len)
+        throws IOException
+    {
+        if (maps != null) {
+            int n = maps[i].write(start, bs, off, len);
+            if (n == len) {
+                return;
+            }
+            start += n;
+            off += n;
+            len -= n;
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(bs, off, len);
+        while (buf.hasRemaining()) {
+            FileHandleCache.Handle h = handles.acquire(i);
+            try {
+                while (buf.hasRemaining()) {
+                    h.channel.write(buf, start + buf.position() - off);
+                }
+            } catch (ClosedChannelException cce) {
+                channelClosed(h, cce);
+            } finally {
+                handles.release(h);
+            }
+        }
+    }
+
+    /**
+     * Called when the channel of the given handle turned out to be closed. A
+     * FileChannel is closed when a thread using it is interrupted, which
+     * happens when a peer disconnects, so the handle is dropped and the file
+     * is opened again on the next access. The exception is rethrown when it
+     * was the current thread that got interrupted, otherwise the caller can
+     * retry.
+     */
+    private void channelClosed (FileHandleCache.Handle h,
+        ClosedChannelException cce) throws IOException
+    {
+        handles.invalidate(h);
+        if (cce instanceof ClosedByInterruptException) {
+            throw cce;
+        }
+    }
+
+    /**
+     * The part of a piece that lies within one file.
+     */
+    static final class Segment
+    {
+        /** The file number. */
+        final int file;
+
+        /** The position in the file. */
+        final long start;
+
+        /** The offset in the piece. */
+        final int off;
+
+        /** The number of bytes in this file. */
+        final int len;
+
+        Segment (int file, long start, int off, int len)
+        {
+            this.file = file;
+            this.start = start;
+            this.off = off;
+            this.len = len;
+        }
     }
 
     /** The Java logger used to process our log events. */
@@ -0,0 +1,193 @@
+/*
+ * StorageInputStream - Reads a file of a torrent while it is downloaded.
+ *
+ * This file is part of Snark.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.klomp.snark;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads one file of a torrent while it is being downloaded. Bytes are
+ * returned as soon as the pieces they are part of have been verified, reads
+ * of bytes in missing pieces block until the piece arrives. The stream can be
+ * positioned anywhere in the file with seek(). Every read moves the stream
+ * cursor of the Storage, which the PeerCoordinator uses in streaming mode to
+ * fetch the pieces just after it first.
+ */
+public class StorageInputStream extends InputStream
+{
+    private final Storage storage;
+
+    // The offset of the file in the torrent.
+    private final long start;
+
+    private final long length;
+
+    private final int pieceLength;
+
+    private long position;
+
+    // Read without the lock so close() can stop a waiting read.
+    private volatile boolean closed;
+
+    StorageInputStream (Storage storage, long start, long length)
+    {
+        this.storage = storage;
+        this.start = start;
+        this.length = length;
+        pieceLength = storage.getMetaInfo().getPieceLength(0);
+    }
+
+    @Override
+    public int read () throws IOException
+    {
+        byte[] b = new byte[1];
+        return (read(b, 0, 1) == -1) ? -1 : b[0] & 0xff;
+    }
+
+    /**
+     * Reads at most len bytes, never more than the rest of the piece the
+     * current position is in. Blocks until that piece is available or the
+     * stream is closed. The stream isn't locked while waiting.
+     *
+     * @exception java.io.InterruptedIOException
+     *                when interrupted while waiting for the piece.
+     */
+    @Override
+    public int read (byte[] bs, int off, int len) throws IOException
+    {
+        if (off < 0 || len < 0 || off + len > bs.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        while (true) {
+            int piece;
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                if (position >= length) {
+                    return -1;
+                }
+                if (len == 0) {
+                    return 0;
+                }
+
+                long offset = start + position;
+                piece = (int)(offset / pieceLength);
+                int begin = (int)(offset - (long)piece * pieceLength);
+                int n = (int)Math.min(Math.min(len, pieceLength - begin),
+                    length - position);
+
+                storage.setStreamCursor(piece);
+                if (storage.hasPiece(piece)) {
+                    storage.getBlock(piece, begin, n, bs, off);
+                    position += n;
+                    return n;
+                }
+            }
+
+            // The position might have moved while waiting, so start over.
+            storage.waitForPiece(piece, this);
+        }
+    }
+
+    @Override
+    public synchronized long skip (long n) throws IOException
+    {
+        if (n <= 0 || position >= length) {
+            return 0;
+        }
+        long skipped = Math.min(n, length - position);
+        seek(position + skipped);
+        return skipped;
+    }
+
+    /**
+     * Returns the number of bytes up to the end of the current piece when it
+     * is available, these can be read without blocking.
+     */
+    @Override
+    public synchronized int available () throws IOException
+    {
+        if (closed || position >= length) {
+            return 0;
+        }
+        long offset = start + position;
+        int piece = (int)(offset / pieceLength);
+        if (!storage.hasPiece(piece)) {
+            return 0;
+        }
+        long pieceEnd = (long)(piece + 1) * pieceLength;
+        return (int)Math.min(pieceEnd - offset, length - position);
+    }
+
+    /**
+     * Moves the stream to the given position in the file. Positions at or
+     * past the end of the file are allowed, reads then return -1.
+     *
+     * @exception IllegalArgumentException
+     *                when position is negative.
+     */
+    public synchronized void seek (long position) throws IOException
+    {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position: "
+                + position);
+        }
+        this.position = position;
+        if (position < length) {
+            storage.setStreamCursor((int)((start + position) / pieceLength));
+        }
+    }
+
+    /**
+     * Returns the current position in the file.
+     */
+    public synchronized long getPosition ()
+    {
+        return position;
+    }
+
+    /**
+     * Returns the length of the file.
+     */
+    public long getLength ()
+    {
+        return length;
+    }
+
+    boolean isClosed ()
+    {
+        return closed;
+    }
+
+    /**
+     * Closes the stream, a read waiting for a piece fails.
+     */
+    @Override
+    public void close ()
+    {
+        closed = true;
+        storage.streamClosed();
+    }
+}
@@ -42,6 +42,15 @@ public interface StorageListener
      */
     void storageChecked (Storage storage, int num, boolean checked);
 
+    /**
+     * Called when a new storage is being created and the num piece of the
+     * total pieces has been hashed. Pieces are reported in order. The number
+     * of bytes hashed so far and the number of milliseconds that took can be
+     * used to calculate the throughput.
+     */
+    void storageHashed (Storage storage, int num, int total, long bytes,
+        long elapsed);
+
     /**
      * Called when all pieces in the storage have been checked. Does not mean
      * that the storage is complete, just that the state of the storage is
@@ -0,0 +1,52 @@
+/*
+ * SyncTask - Periodically syncs the batched writes of the Storage.
+ *
+ * This file is part of Snark.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.klomp.snark;
+
+import java.io.IOException;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * TimerTask that forces the written files of the Storage to disk when the
+ * sync interval of SYNC_BATCHED passed, also when no more pieces are being
+ * written.
+ */
+class SyncTask extends TimerTask
+{
+    private final Storage storage;
+
+    SyncTask (Storage storage)
+    {
+        this.storage = storage;
+    }
+
+    @Override
+    public void run ()
+    {
+        try {
+            storage.syncIfDue();
+        } catch (IOException ioe) {
+            log.log(Level.WARNING, "Couldn't sync storage", ioe);
+        }
+    }
+
+    protected static final Logger log = Logger.getLogger("org.klomp.snark.storage");
+}
@@ -62,6 +62,17 @@ public class ConsoleStorageReporter implements StorageListener
         }
     }
 
+    public void storageHashed (Storage storage, int num, int total,
+        long bytes, long elapsed)
+    {
+        if (num == total - 1) {
+            System.err.println();
+            long rate = bytes / Math.max(1, elapsed) * 1000 / (1024 * 1024);
+            log.log(Level.INFO, "Hashed " + bytes / (1024 * 1024) + " MB in "
+                + elapsed / 1000 + " seconds (" + rate + " MB/s)");
+        }
+    }
+
     public void storageAllChecked (Storage storage)
     {
         allChecked = true;
@@ -12,11 +12,13 @@ import java.util.Timer;
 import java.util.TimerTask;
 
 import org.klomp.snark.CoordinatorListener;
+import org.klomp.snark.FileHandleCache;
 import org.klomp.snark.Peer;
 import org.klomp.snark.PeerMonitorTask;
 import org.klomp.snark.ShutdownListener;
 import org.klomp.snark.Snark;
 import org.klomp.snark.SnarkShutdown;
+import org.klomp.snark.Storage;
 import org.klomp.snark.StorageListener;
 
 /**
@@ -124,9 +126,13 @@ public class SnarkApplication
                         + snark.meta.getPieceLength(0) / 1024 + " KB");
                     System.out.println("Total size: "
                         + snark.meta.getTotalLength() / (1024 * 1024) + " MB");
+                } else if ("files".equals(line)) {
+                    showFiles(snark);
+                } else if (line.startsWith("priority ")) {
+                    setPriority(snark, line.substring(9).trim());
                 } else if ("state".equals(line)) {
                     System.out.println(
-                        snark.storage.getBitField().getHumanReadable());
+                        snark.storage.getBitFieldSnapshot().getHumanReadable());
                     System.out.println("Total peers: "
                         + snark.coordinator.getPeers());
                     System.out.println("Total size: "
@@ -137,6 +143,12 @@ public class SnarkApplication
                         + snark.coordinator.getDownloaded());
                     System.out.println("Total uploaded: "
                         + snark.coordinator.getUploaded());
+                    long endgame = snark.coordinator.getEndgameTime();
+                    if (endgame > 0) {
+                        System.out.println("Endgame: " + endgame / 1000
+                            + " s" + (snark.coordinator.isEndgame()
+                                ? " (running)" : ""));
+                    }
                 } else if ("".equals(line) || "help".equals(line)) {
                     System.out.println(usage);
                     System.out.println(help);
@@ -159,6 +171,67 @@ public class SnarkApplication
         hook.start();
     }
 
+    /**
+     * Prints the files of the torrent with their numbers and priorities.
+     */
+    protected static void showFiles (Snark snark)
+    {
+        List files = snark.meta.getFiles();
+        if (files == null) {
+            System.out.println("0 " + PRIORITIES[snark.storage.getFilePriority(0)]
+                + "\t" + snark.meta.getName() + " ("
+                + snark.meta.getTotalLength() / 1024 + " KB)");
+            return;
+        }
+
+        List lengths = snark.meta.getLengths();
+        for (int i = 0; i < files.size(); i++) {
+            StringBuffer name = new StringBuffer(snark.meta.getName());
+            for (Object part : (List)files.get(i)) {
+                name.append('/').append(part);
+            }
+            System.out.println(i + " " + PRIORITIES[snark.storage.getFilePriority(i)]
+                + "\t" + name + " (" + ((Long)lengths.get(i)).longValue() / 1024
+                + " KB)");
+        }
+    }
+
+    /**
+     * Handles the "priority <file> <priority>" command.
+     */
+    protected static void setPriority (Snark snark, String args)
+    {
+        String[] parts = args.split("\\s+");
+        int priority = -1;
+        if (parts.length == 2) {
+            for (int i = 0; i < PRIORITIES.length; i++) {
+                if (PRIORITIES[i].equals(parts[1])) {
+                    priority = i;
+                }
+            }
+        }
+        List files = snark.meta.getFiles();
+        int count = (files == null) ? 1 : files.size();
+        int file = -1;
+        try {
+            file = Integer.parseInt(parts[0]);
+        } catch (NumberFormatException nfe) {
+            // Reported below.
+        }
+        if (priority == -1 || file < 0 || file >= count) {
+            System.out.println("Usage: priority <file> (skip|low|normal|high),"
+                + " see 'files' for the file numbers.");
+            return;
+        }
+
+        try {
+            snark.coordinator.setFilePriority(file, priority);
+            System.out.println("File " + file + " is now " + PRIORITIES[priority]);
+        } catch (IOException ioe) {
+            System.out.println("Couldn't change the priority: " + ioe);
+        }
+    }
+
     /**
      * Prints messages about proper usage of the Snark application.
      */
@@ -170,7 +243,13 @@ public class SnarkApplication
             stream.println("snark: " + s);
         }
         stream.println("Usage: snark [--debug [level]] [--no-commands] [--port <port>]");
-        stream.println("  [--show-peers] [--share (<ip>|<host>)] (<url>|<file>|<dir>)");
+        stream.println("  [--show-peers] [--mmap] [--hash-threads <n>]");
+        stream.println("  [--recheck] [--allocate (sparse|full|zero)]");
+        stream.println("  [--cache <MB>] [--zero-copy] [--max-open-files <n>]");
+        stream.println("  [--io-scheduler] [--sync (none|batched|resume)]");
+        stream.println("  [--skip <n>[,<n>...]] [--stream <pieces>]");
+        stream.println("  [--share (<ip>|<host>)]");
+        stream.println("  (<url>|<file>|<dir>)");
         stream.println("  --debug\tShows some extra info and stacktraces");
         stream.println("    level\tHow much debug details to show");
         stream.println("         \t(defaults to " + Level.SEVERE
@@ -181,6 +260,32 @@ public class SnarkApplication
         stream.println("        \t(if not given defaults to first free port between "
             + Snark.MIN_PORT + "-" + Snark.MAX_PORT + ").");
         stream.println("  --show-peers\tIf enabled, periodically prints peer information.");
+        stream.println("  --mmap \tMemory map the files instead of using seek/read/write.");
+        stream.println("  --recheck\tIgnore the resume data and check all existing pieces.");
+        stream.println("  --allocate\tHow to allocate new files: only set the length");
+        stream.println("          \t(sparse, the default), reserve all blocks (full)");
+        stream.println("          \tor write zeros (zero). Full doesn't reserve space");
+        stream.println("          \ton copy-on-write or compressing file systems.");
+        stream.println("  --cache\tMegabytes used to cache pieces for uploading");
+        stream.println("       \t(defaults to 16, 0 disables the cache).");
+        stream.println("  --zero-copy\tSend uncached pieces straight from the files.");
+        stream.println("        \tUses socket channels, which on Java before 13");
+        stream.println("        \tcan't read and write a connection at once.");
+        stream.println("  --max-open-files\tThe number of torrent files kept open at once");
+        stream.println("        \t(defaults to " + FileHandleCache.DEFAULT_MAX_OPEN + ").");
+        stream.println("  --io-scheduler\tOrder disk reads and writes to limit seeking.");
+        stream.println("        \tDoes them one at a time, so only use it for");
+        stream.println("        \ttorrents on spinning disks, not on SSDs.");
+        stream.println("  --sync \tWhen to force written pieces to disk: never (none),");
+        stream.println("        \tevery " + Storage.DEFAULT_SYNC_PIECES + " pieces or "
+            + Storage.DEFAULT_SYNC_INTERVAL / 1000 + " seconds (batched) or");
+        stream.println("        \tbefore saving the resume data (resume, the default).");
+        stream.println("  --skip \tDon't download the files with the given numbers,");
+        stream.println("        \tas shown by the 'files' command.");
+        stream.println("  --stream\tFetch the given number of pieces after the");
+        stream.println("        \tstreamed position (or the first missing piece) first.");
+        stream.println("  --hash-threads\tThe number of threads used to check pieces");
+        stream.println("        \t(defaults to the number of processors).");
         stream.println("  --share\tStart torrent tracker on <ip> address or <host> name.");
         stream.println("  <url>  \tURL pointing to .torrent metainfo file to download/share.");
         stream.println("  <file> \tEither a local .torrent metainfo file to download");
@@ -210,6 +315,17 @@ public class SnarkApplication
         String ip = null;
         String torrent = null;
         Level level = Level.INFO;
+        boolean mmap = false;
+        boolean recheck = false;
+        int allocation = Storage.ALLOCATE_SPARSE;
+        long cacheSize = -1;
+        int maxOpenFiles = -1;
+        boolean zeroCopy = false;
+        boolean ioScheduling = false;
+        int syncPolicy = Storage.SYNC_RESUME;
+        int hashThreads = -1;
+        int[] skipFiles = null;
+        int streamWindow = 0;
 
         int i = 0;
         while (i < args.length) {
@@ -242,6 +358,110 @@ public class SnarkApplication
                 }
                 ip = args[i + 1];
                 i += 2;
+            } else if (args[i].equals("--hash-threads")) {
+                if (args.length - 1 < i + 1) {
+                    usage("--hash-threads needs the number of threads");
+                }
+                try {
+                    hashThreads = Integer.parseInt(args[i + 1]);
+                } catch (NumberFormatException nfe) {
+                    usage("--hash-threads argument must be a number (" + nfe
+                        + ")");
+                }
+                i += 2;
+            } else if (args[i].equals("--allocate")) {
+                if (args.length - 1 < i + 1) {
+                    usage("--allocate needs sparse, full or zero");
+                }
+                if (args[i + 1].equals("sparse")) {
+                    allocation = Storage.ALLOCATE_SPARSE;
+                } else if (args[i + 1].equals("full")) {
+                    allocation = Storage.ALLOCATE_FULL;
+                } else if (args[i + 1].equals("zero")) {
+                    allocation = Storage.ALLOCATE_ZERO;
+                } else {
+                    usage("--allocate argument must be sparse, full or zero");
+                }
+                i += 2;
+            } else if (args[i].equals("--cache")) {
+                if (args.length - 1 < i + 1) {
+                    usage("--cache needs the cache size in megabytes");
+                }
+                try {
+                    cacheSize = Long.parseLong(args[i + 1]) * 1024 * 1024;
+                } catch (NumberFormatException nfe) {
+                    usage("--cache argument must be a number (" + nfe + ")");
+                }
+                i += 2;
+            } else if (args[i].equals("--max-open-files")) {
+                if (args.length - 1 < i + 1) {
+                    usage("--max-open-files needs the number of files");
+                }
+                try {
+                    maxOpenFiles = Integer.parseInt(args[i + 1]);
+                } catch (NumberFormatException nfe) {
+                    usage("--max-open-files argument must be a number ("
+                        + nfe + ")");
+                }
+                if (maxOpenFiles < 1) {
+                    usage("--max-open-files argument must be at least 1");
+                }
+                i += 2;
+            } else if (args[i].equals("--sync")) {
+                if (args.length - 1 < i + 1) {
+                    usage("--sync needs none, batched or resume");
+                }
+                String policy = args[i + 1];
+                if (policy.equals("none")) {
+                    syncPolicy = Storage.SYNC_NONE;
+                } else if (policy.equals("batched")) {
+                    syncPolicy = Storage.SYNC_BATCHED;
+                } else if (policy.equals("resume")) {
+                    syncPolicy = Storage.SYNC_RESUME;
+                } else {
+                    usage("--sync argument must be none, batched or resume");
+                }
+                i += 2;
+            } else if (args[i].equals("--skip")) {
+                if (args.length - 1 < i + 1) {
+                    usage("--skip needs the file numbers");
+                }
+                String[] numbers = args[i + 1].split(",");
+                skipFiles = new int[numbers.length];
+                try {
+                    for (int n = 0; n < numbers.length; n++) {
+                        skipFiles[n] = Integer.parseInt(numbers[n].trim());
+                    }
+                } catch (NumberFormatException nfe) {
+                    usage("--skip argument must be a list of numbers (" + nfe
+                        + ")");
+                }
+                i += 2;
+            } else if (args[i].equals("--stream")) {
+                if (args.length - 1 < i + 1) {
+                    usage("--stream needs the number of pieces");
+                }
+                try {
+                    streamWindow = Integer.parseInt(args[i + 1]);
+                } catch (NumberFormatException nfe) {
+                    usage("--stream argument must be a number (" + nfe + ")");
+                }
+                if (streamWindow < 1) {
+                    usage("--stream argument must be at least 1");
+                }
+                i += 2;
+            } else if (args[i].equals("--io-scheduler")) {
+                ioScheduling = true;
+                i++;
+            } else if (args[i].equals("--zero-copy")) {
+                zeroCopy = true;
+                i++;
+            } else if (args[i].equals("--recheck")) {
+                recheck = true;
+                i++;
+            } else if (args[i].equals("--mmap")) {
+                mmap = true;
+                i++;
             } else if (args[i].equals("--no-commands") ||
                     args[i].equals("--show-peers")) {
                 // ignore, processed elsewhere.
@@ -266,6 +486,25 @@ public class SnarkApplication
         }
 
         Snark snark = new Snark(torrent, ip, user_port, slistener, clistener);
+        snark.memoryMapped = mmap;
+        snark.recheck = recheck;
+        snark.allocation = allocation;
+        snark.zeroCopy = zeroCopy;
+        snark.ioScheduling = ioScheduling;
+        snark.syncPolicy = syncPolicy;
+        snark.streamWindow = streamWindow;
+        if (cacheSize >= 0) {
+            snark.cacheSize = cacheSize;
+        }
+        if (hashThreads > 0) {
+            snark.hashThreads = hashThreads;
+        }
+        if (maxOpenFiles > 0) {
+            snark.maxOpenFiles = maxOpenFiles;
+        }
+        if (skipFiles != null) {
+            snark.skipFiles = skipFiles;
+        }
         return snark;
     }
 
@@ -286,7 +525,12 @@ public class SnarkApplication
         "Press return for help. Type \"quit\" and return to stop.";
 
     /** A list of commands that the interactive interface accepts */
-    protected static final String help = "Commands: 'info', 'list', 'quit'.";
+    protected static final String help = "Commands: 'info', 'list', 'state',"
+        + " 'files', 'priority <file> (skip|low|normal|high)', 'quit'.";
+
+    /** The names of the file priorities, indexed by priority */
+    protected static final String[] PRIORITIES = { "skip", "low", "normal",
+        "high" };
 
     /** The Java logger used to process our log events. */
     protected static final Logger log = Logger.getLogger("org.klomp.snark.cmd");
@@ -0,0 +1,199 @@
+package org.klomp.snark;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for BitField.
+ */
+public class BitFieldTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public BitFieldTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( BitFieldTest.class );
+    }
+
+    /**
+     * The wire format survives a round trip, bits past the size are dropped.
+     */
+    public void testFieldBytesRoundTrip()
+    {
+        int[] sizes = { 1, 63, 64, 65, 8 * 1 + 3, 8 * 16 + 3, 8 * 125 + 3 };
+        Random random = new Random( 23 );
+        for ( int size : sizes )
+        {
+            byte[] bs = new byte[( size + 7 ) / 8];
+            random.nextBytes( bs );
+
+            BitField bitfield = new BitField( bs, size );
+            int count = 0;
+            for ( int i = 0; i < size; i++ )
+            {
+                boolean set = ( bs[i / 8] & ( 0x80 >>> ( i % 8 ) ) ) != 0;
+                assertEquals( "bit " + i + " of " + size, set, bitfield.get( i ) );
+                if ( set )
+                {
+                    count++;
+                }
+            }
+            assertEquals( "cardinality of " + size, count, bitfield.cardinality() );
+
+            // The bits past size in the last byte are unset.
+            if ( size % 8 != 0 )
+            {
+                bs[bs.length - 1] &= (byte) ( 0xff << ( 8 - size % 8 ) );
+            }
+            assertTrue( "bytes of " + size, Arrays.equals( bs, bitfield.getFieldBytes() ) );
+        }
+    }
+
+    public void testNextSetBitAtWordEdges()
+    {
+        BitField bitfield = new BitField( 130 );
+        bitfield.set( 63 );
+        bitfield.set( 64 );
+        bitfield.set( 127 );
+        bitfield.set( 128 );
+
+        assertEquals( 63, bitfield.nextSetBit( 0 ) );
+        assertEquals( 63, bitfield.nextSetBit( 63 ) );
+        assertEquals( 64, bitfield.nextSetBit( 64 ) );
+        assertEquals( 127, bitfield.nextSetBit( 65 ) );
+        assertEquals( 128, bitfield.nextSetBit( 128 ) );
+        assertEquals( -1, bitfield.nextSetBit( 129 ) );
+        assertEquals( -1, bitfield.nextSetBit( 130 ) );
+    }
+
+    public void testNextClearBitAtWordEdges()
+    {
+        BitField bitfield = new BitField( 129 );
+        for ( int i = 0; i < 129; i++ )
+        {
+            bitfield.set( i );
+        }
+        bitfield.clear( 63 );
+        bitfield.clear( 64 );
+
+        assertEquals( 63, bitfield.nextClearBit( 0 ) );
+        assertEquals( 64, bitfield.nextClearBit( 64 ) );
+        assertEquals( -1, bitfield.nextClearBit( 65 ) );
+
+        bitfield.clear( 128 );
+        assertEquals( 128, bitfield.nextClearBit( 65 ) );
+
+        // The unused bits of the last word are never returned.
+        for ( int size = 63; size <= 65; size++ )
+        {
+            BitField full = new BitField( size );
+            for ( int i = 0; i < size; i++ )
+            {
+                full.set( i );
+            }
+            assertEquals( "size " + size, -1, full.nextClearBit( 0 ) );
+            assertEquals( "size " + size, -1, full.nextClearBit( size - 1 ) );
+        }
+    }
+
+    /**
+     * Or-ing a bigger BitField leaves the bits past the size unset.
+     */
+    public void testOrClearsTail()
+    {
+        BitField bigger = new BitField( 128 );
+        for ( int i = 0; i < 128; i++ )
+        {
+            bigger.set( i );
+        }
+
+        BitField bitfield = new BitField( 65 );
+        bitfield.or( bigger );
+
+        assertEquals( 65, bitfield.cardinality() );
+        assertEquals( -1, bitfield.nextSetBit( 65 ) );
+        assertEquals( -1, bitfield.nextClearBit( 0 ) );
+
+        byte[] bs = bitfield.getFieldBytes();
+        assertEquals( 9, bs.length );
+        assertEquals( (byte) 0x80, bs[8] );
+
+        // Bits that were set past the size don't show up when growing.
+        BitField copy = new BitField( bs, 65 );
+        assertEquals( 65, copy.cardinality() );
+    }
+
+    /**
+     * Combining BitFields only counts as a change when a bit changed.
+     */
+    public void testVersionOnlyChangesWithBits()
+    {
+        BitField bitfield = new BitField( 130 );
+        bitfield.set( 1 );
+        bitfield.set( 100 );
+        BitField other = new BitField( 130 );
+        other.set( 100 );
+
+        int version = bitfield.getVersion();
+        BitField snapshot = bitfield.snapshot();
+        bitfield.or( other );
+        bitfield.and( bitfield );
+        bitfield.andNot( new BitField( 130 ) );
+        assertEquals( version, bitfield.getVersion() );
+        assertSame( snapshot, bitfield.snapshot() );
+
+        bitfield.andNot( other );
+        assertEquals( version + 1, bitfield.getVersion() );
+        assertEquals( 1, bitfield.cardinality() );
+        assertFalse( "bit 100", bitfield.get( 100 ) );
+    }
+
+    /**
+     * A snapshot keeps the bits it was taken with.
+     */
+    public void testSnapshotDoesNotChange()
+    {
+        BitField bitfield = new BitField( 70 );
+        bitfield.set( 3 );
+        BitField snapshot = bitfield.snapshot();
+        assertTrue( snapshot.isSnapshot() );
+
+        bitfield.set( 69 );
+        bitfield.clear( 3 );
+        assertTrue( "bit 3", snapshot.get( 3 ) );
+        assertFalse( "bit 69", snapshot.get( 69 ) );
+        assertEquals( 1, snapshot.cardinality() );
+        assertEquals( bitfield.getVersion() - 2, snapshot.getVersion() );
+
+        BitField next = bitfield.snapshot();
+        assertTrue( "new snapshot", next != snapshot );
+        assertEquals( 1, next.cardinality() );
+        assertTrue( "bit 69", next.get( 69 ) );
+
+        try
+        {
+            snapshot.set( 5 );
+            fail( "snapshot changed" );
+        }
+        catch ( UnsupportedOperationException uoe )
+        {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.klomp.snark;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for PiecePicker.
+ */
+public class PiecePickerTest
+    extends TestCase
+{
+    private static final int PIECES = 10000;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public PiecePickerTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( PiecePickerTest.class );
+    }
+
+    /**
+     * Returns a picker that wants all pieces, of which every piece is had by
+     * two peers so they all end up in the same bucket. Rarest first is used
+     * right away.
+     */
+    private PiecePicker picker()
+    {
+        PiecePicker picker = new PiecePicker( PIECES, PiecePicker.RANDOM_FIRST );
+        for ( int i = 0; i < PIECES; i++ )
+        {
+            picker.setWanted( i, true );
+            picker.peerHas( i );
+            picker.peerHas( i );
+        }
+        return picker;
+    }
+
+    /**
+     * A peer with a few pieces in a large bucket gets exactly those, and
+     * nothing once they are all being downloaded.
+     */
+    public void testSparsePeer()
+    {
+        BitField sparse = new BitField( PIECES );
+        sparse.set( 5 );
+        sparse.set( 7000 );
+        sparse.set( PIECES - 1 );
+        PiecePicker picker = picker();
+
+        BitField picked = new BitField( PIECES );
+        for ( int k = 0; k < 3; k++ )
+        {
+            int piece = picker.pick( sparse, -1 );
+            assertTrue( "picked " + piece, piece != -1 && sparse.get( piece ) );
+            assertFalse( "picked twice " + piece, picked.get( piece ) );
+            picked.set( piece );
+            picker.started( piece );
+        }
+        assertEquals( -1, picker.pick( sparse, -1 ) );
+
+        // A piece is available again once its download stopped.
+        picker.stopped( 7000 );
+        assertEquals( 7000, picker.pick( sparse, -1 ) );
+    }
+
+    /**
+     * A sparse peer still gets the rarest and most important of its pieces.
+     */
+    public void testSparsePeerRarest()
+    {
+        BitField sparse = new BitField( PIECES );
+        sparse.set( 10 );
+        sparse.set( 20 );
+        sparse.set( 30 );
+        PiecePicker picker = picker();
+        picker.peerHas( 10 );
+        picker.peerHas( 30 );
+
+        assertEquals( 20, picker.pick( sparse, -1 ) );
+
+        picker.setPriority( 30, Storage.PRIORITY_HIGH );
+        assertEquals( 30, picker.pick( sparse, -1 ) );
+    }
+
+    /**
+     * Near the end, when almost all pieces are being downloaded, a peer
+     * having everything still gets the few pieces left.
+     */
+    public void testBusyPiecesSkipped()
+    {
+        BitField all = new BitField( PIECES );
+        for ( int i = 0; i < PIECES; i++ )
+        {
+            all.set( i );
+        }
+        PiecePicker picker = picker();
+        for ( int i = 0; i < PIECES; i++ )
+        {
+            if ( i != 42 && i != 4242 )
+            {
+                picker.started( i );
+            }
+        }
+
+        int first = picker.pick( all, -1 );
+        assertTrue( "picked " + first, first == 42 || first == 4242 );
+        picker.started( first );
+        int second = picker.pick( all, -1 );
+        assertEquals( first == 42 ? 4242 : 42, second );
+    }
+}